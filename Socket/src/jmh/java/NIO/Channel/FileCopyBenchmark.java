@@ -0,0 +1,49 @@
+package NIO.Channel;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 四种FileCopyRunner在不同文件大小下的拷贝耗时
+ * noBufferStreamCopy每个字节一次系统调用，16MB的文件一次要好几秒，不关心可以用 -p runner=... 排除
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileCopyBenchmark {
+    @Param({"noBufferStreamCopy", "bufferedStreamCopy", "nioBufferCopy", "nioTransferCopy"})
+    public String runner;
+
+    @Param({"4096", "1048576", "16777216"})
+    public int size;
+
+    private FileCopyRunner copyRunner;
+    private File source;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        copyRunner = FileCopyDemo.runner(runner);
+        source = FileCopyDemo.createTempFile(size);
+        target = Files.createTempFile("copy-target", ".bin").toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        source.delete();
+        target.delete();
+    }
+
+    @Benchmark
+    public void copy() {
+        //目标文件每次都被截断重写
+        copyRunner.copyFile(source, target);
+    }
+}
@@ -0,0 +1,90 @@
+package NIO.codec;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 聊天消息的UTF-8编解码：帧编解码器和直接用String的对比
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({"ascii", "chinese", "long"})
+    public String message;
+
+    private final Charset charset = StandardCharsets.UTF_8;
+    private String msg;
+    private byte[] bytes;
+    private FrameEncoder encoder;
+    private FrameDecoder decoder;
+    //一个完整的帧，每次解码用它的副本
+    private ByteBuffer frame;
+    private final List<ByteBuffer> frames = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        switch (message) {
+            case "ascii":
+                msg = "hello everyone, dinner at seven?";
+                break;
+            case "chinese":
+                msg = "大家好，今天晚上七点一起吃饭吗？";
+                break;
+            default:
+                StringBuilder builder = new StringBuilder();
+                while (builder.length() < 4096) {
+                    builder.append("long message 长消息 ");
+                }
+                msg = builder.toString();
+        }
+        bytes = msg.getBytes(charset);
+        BufferPool pool = new BufferPool();
+        encoder = new FrameEncoder(charset, pool);
+        decoder = new FrameDecoder(pool);
+        PooledBuffer encoded = encoder.encode(msg);
+        frame = ByteBuffer.allocateDirect(encoded.buffer().remaining());
+        frame.put(encoded.buffer()).flip();
+        encoded.release();
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        PooledBuffer encoded = encoder.encode(msg);
+        int length = encoded.buffer().remaining();
+        encoded.release();
+        return length;
+    }
+
+    @Benchmark
+    public byte[] encodeGetBytes() {
+        return msg.getBytes(charset);
+    }
+
+    @Benchmark
+    public String decodeFrame() throws IOException {
+        frames.clear();
+        decoder.decode(frame.duplicate(), frames);
+        String decoded = charset.decode(frames.get(0)).toString();
+        frames.clear();
+        decoder.discardReadBytes();
+        return decoded;
+    }
+
+    @Benchmark
+    public String decodeNewString() {
+        return new String(bytes, charset);
+    }
+}
@@ -0,0 +1,87 @@
+package NIO.server;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.Outbound;
+import NIO.buffer.PooledBuffer;
+import NIO.codec.FrameEncoder;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一条消息广播给N个接收者的开销
+ * 写到一个直接丢弃的channel，只测编码、共享视图和引用计数，不含系统调用
+ * encodeOnce是现在服务器的做法，另外两个是每个接收者各编码一次的对照
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FanOutBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private final Charset charset = StandardCharsets.UTF_8;
+    private final String msg = "客户端[42]:hello everyone, dinner at seven?";
+    private FrameEncoder encoder;
+    private final WritableByteChannel sink = new NullChannel();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        encoder = new FrameEncoder(charset, new BufferPool());
+    }
+
+    @Benchmark
+    public void encodeOnce() throws Exception {
+        PooledBuffer frame = encoder.encode(msg);
+        for (int i = 0; i < recipients; i++) {
+            Outbound shared = frame.retainedDuplicate();
+            shared.writeTo(sink);
+            shared.release();
+        }
+        frame.release();
+    }
+
+    @Benchmark
+    public void encodePerRecipient() throws Exception {
+        for (int i = 0; i < recipients; i++) {
+            PooledBuffer frame = encoder.encode(msg);
+            frame.writeTo(sink);
+            frame.release();
+        }
+    }
+
+    @Benchmark
+    public void heapEncodePerRecipient() throws Exception {
+        for (int i = 0; i < recipients; i++) {
+            ByteBuffer payload = charset.encode(msg);
+            ByteBuffer frame = ByteBuffer.allocate(FrameEncoder.HEADER_LENGTH + payload.remaining());
+            frame.putInt(payload.remaining()).put(payload).flip();
+            sink.write(frame);
+        }
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package AIO.client;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+import NIO.codec.FrameDecoder;
+import NIO.codec.FrameEncoder;
+import NIO.codec.TextDecoder;
+import common.Command;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于AsynchronousSocketChannel的客户端，协议和NIO服务器一样（长度前缀帧）
+ * 没有自己的线程，读写都由channel group的线程回调驱动，几千个客户端可以共用一个group，
+ * 适合做机器人和集成测试
+ * send可以在任意线程调用，帧进有界的发送队列，同一时刻只有一个写在途，
+ * 写完之后把队列里攒下的帧合并成一次gathering write；返回的future在这条消息写进socket之后完成
+ * 收到的消息回调Listener，服务器的心跳自动回复；不接收文件，文件内容直接丢掉
+ * 开了压缩时连上之后先发/compress，服务器发来的压缩帧由FrameDecoder解开；自己发的消息不压缩
+ */
+public class AsyncChatClient {
+    private static final String DEFAULT_SERVER_HOST = "127.0.0.1";
+    private static final int DEFAULT_SERVER_PORT = 7777;
+    private static final String QUIT = "quit";
+    private static final int BUFFER = 1024;
+    //一次gathering write最多合并几条
+    private static final int MAX_BATCH = 64;
+    public static final int DEFAULT_MAX_QUEUED_MESSAGES = 1024;
+    private static final Charset CHARSET = StandardCharsets.UTF_8;
+    //所有客户端共用一个池和编码器，编码器里的CharsetEncoder按线程缓存
+    private static final BufferPool POOL = new BufferPool();
+    private static final FrameEncoder ENCODER = new FrameEncoder(CHARSET, POOL);
+
+    /**
+     * 收到消息和连接关闭的回调，在channel group的线程里调用，不要在里面阻塞
+     */
+    public interface Listener {
+        void onMessage(AsyncChatClient client, String msg);
+
+        /**
+         * @param cause 服务器正常关闭连接或者调用了close时为null
+         */
+        default void onClose(AsyncChatClient client, Throwable cause) {
+        }
+    }
+
+    private final InetSocketAddress address;
+    private final AsynchronousChannelGroup group;
+    private final Listener listener;
+    private int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    private boolean compression;
+    private AsynchronousSocketChannel channel;
+
+    //读只有一个在途，下面几个只在读回调里按顺序访问
+    private PooledBuffer rBuffer;
+    private final FrameDecoder decoder = new FrameDecoder(POOL);
+    private final TextDecoder textDecoder = new TextDecoder(CHARSET);
+    private final List<ByteBuffer> frames = new ArrayList<>();
+
+    //下面几个用this加锁
+    private final Deque<Pending> queue = new ArrayDeque<>();
+    //有一个写在途，gather只被在途的写使用
+    private boolean writing;
+    private boolean connected;
+    private boolean closed;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_BATCH];
+
+    private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+        @Override
+        public void completed(Integer count, Void attachment) {
+            if (count < 0) {
+                //服务器关闭了连接，比如发了quit之后
+                close(null);
+            } else {
+                try {
+                    ByteBuffer in = rBuffer.buffer();
+                    in.flip();
+                    process(in);
+                    in.clear();
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+            if (isClosed()) {
+                decoder.release();
+                rBuffer.release();
+                return;
+            }
+            channel.read(rBuffer.buffer(), null, this);
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            close(exc);
+            decoder.release();
+            rBuffer.release();
+        }
+    };
+
+    private final CompletionHandler<Long, Void> writeHandler = new CompletionHandler<Long, Void>() {
+        @Override
+        public void completed(Long written, Void attachment) {
+            List<CompletableFuture<Void>> done = new ArrayList<>();
+            boolean more;
+            synchronized (AsyncChatClient.this) {
+                Pending head;
+                while ((head = queue.peekFirst()) != null && !head.frame.hasRemaining()) {
+                    queue.pollFirst().frame.release();
+                    done.add(head.future);
+                }
+                more = !closed && !queue.isEmpty();
+                if (!more) {
+                    writing = false;
+                    if (closed) {
+                        drain();
+                    }
+                }
+            }
+            //回调可能再send，放到锁外面
+            for (CompletableFuture<Void> future : done) {
+                future.complete(null);
+            }
+            if (more) {
+                writeNext();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            synchronized (AsyncChatClient.this) {
+                writing = false;
+                //已经close过的，close(exc)不会再drain
+                if (closed) {
+                    drain();
+                }
+            }
+            close(exc);
+        }
+    };
+
+    public AsyncChatClient(Listener listener) {
+        this(DEFAULT_SERVER_HOST, DEFAULT_SERVER_PORT, null, listener);
+    }
+
+    /**
+     * @param group 多个客户端共用的channel group，为null时用JVM默认的group
+     */
+    public AsyncChatClient(String host, int port, AsynchronousChannelGroup group, Listener listener) {
+        this.address = new InetSocketAddress(host, port);
+        this.group = group;
+        this.listener = listener;
+    }
+
+    /**
+     * 发送队列的上限，满了之后send返回失败的future，要在connect之前设置
+     */
+    public void setMaxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    /**
+     * 连上之后让服务器对长消息发压缩帧，要在connect之前设置
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * 连上之后开始收消息
+     */
+    public CompletableFuture<Void> connect() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            channel = AsynchronousSocketChannel.open(group);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            close(e);
+            future.completeExceptionally(e);
+            return future;
+        }
+        if (compression) {
+            //连上之前入队，排在所有消息前面发出去
+            send(Command.COMPRESS);
+        }
+        channel.connect(address, null, new CompletionHandler<Void, Void>() {
+            @Override
+            public void completed(Void result, Void attachment) {
+                rBuffer = POOL.allocate(BUFFER);
+                channel.read(rBuffer.buffer(), null, readHandler);
+                boolean start;
+                synchronized (AsyncChatClient.this) {
+                    connected = true;
+                    //连上之前send的消息
+                    start = !closed && !queue.isEmpty();
+                    writing = start;
+                }
+                if (start) {
+                    writeNext();
+                }
+                future.complete(null);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                close(exc);
+                future.completeExceptionally(exc);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 发一条消息，可以在任意线程调用
+     * @return 写进socket之后完成；队列满了、连接已经关闭或者消息过长时以IOException失败
+     */
+    public CompletableFuture<Void> send(CharSequence msg) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (msg.length() == 0) {
+            future.complete(null);
+            return future;
+        }
+        //在调用者的线程里编码，不占group的线程
+        PooledBuffer frame;
+        try {
+            frame = ENCODER.encode(msg);
+        } catch (IllegalArgumentException e) {
+            //服务器会拒收超长的帧并断开
+            future.completeExceptionally(new IOException("消息过长", e));
+            return future;
+        }
+        boolean start;
+        synchronized (this) {
+            if (closed || queue.size() >= maxQueuedMessages) {
+                frame.release();
+                future.completeExceptionally(new IOException(closed ? "连接已关闭" : "发送队列已满"));
+                return future;
+            }
+            queue.addLast(new Pending(frame, future));
+            start = !writing && connected;
+            if (start) {
+                writing = true;
+            }
+        }
+        if (start) {
+            writeNext();
+        }
+        return future;
+    }
+
+    public boolean readyToQuit(String msg) {
+        return QUIT.equals(msg);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 关闭连接，还没写出去的消息以IOException失败
+     */
+    public void close() {
+        close(null);
+    }
+
+    private void close(Throwable cause) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            //在途的写还在用队头的buffer，等写回调里再还
+            if (!writing) {
+                drain();
+            }
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            listener.onClose(this, cause);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //持有锁调用
+    private void drain() {
+        Pending pending;
+        while ((pending = queue.pollFirst()) != null) {
+            pending.frame.release();
+            pending.future.completeExceptionally(new IOException("连接已关闭"));
+        }
+    }
+
+    //队头连续的帧合并成一次write(ByteBuffer[])，只在writing为true的线程里调用
+    private void writeNext() {
+        int count = 0;
+        synchronized (this) {
+            Arrays.fill(gather, null);
+            for (Pending pending : queue) {
+                if (count == gather.length) {
+                    break;
+                }
+                gather[count++] = pending.frame.buffer();
+            }
+        }
+        channel.write(gather, 0, count, 0L, TimeUnit.MILLISECONDS, null, writeHandler);
+    }
+
+    //拆帧，文件帧的内容丢掉，心跳直接回
+    private void process(ByteBuffer in) throws IOException {
+        while (true) {
+            if (decoder.inRaw()) {
+                decoder.skipRaw(in);
+                if (decoder.inRaw()) {
+                    return;
+                }
+            }
+            frames.clear();
+            decoder.decode(in, frames);
+            //帧是缓冲的视图，下次read之前转成字符串
+            for (ByteBuffer frame : frames) {
+                CharBuffer text = textDecoder.decode(frame);
+                if (Command.PING.contentEquals(text)) {
+                    send(Command.PONG);
+                    continue;
+                }
+                try {
+                    listener.onMessage(this, text.toString());
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            frames.clear();
+            if (decoder.takeFileHeader() == null) {
+                decoder.discardReadBytes();
+                return;
+            }
+        }
+    }
+
+    //一条待发送的消息和它的future
+    private static class Pending {
+        private final PooledBuffer frame;
+        private final CompletableFuture<Void> future;
+
+        Pending(PooledBuffer frame, CompletableFuture<Void> future) {
+            this.frame = frame;
+            this.future = future;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        AsyncChatClient client = new AsyncChatClient(new Listener() {
+            @Override
+            public void onMessage(AsyncChatClient client, String msg) {
+                System.out.println(msg);
+            }
+
+            @Override
+            public void onClose(AsyncChatClient client, Throwable cause) {
+                if (cause != null) {
+                    cause.printStackTrace();
+                }
+                System.exit(0);
+            }
+        });
+        client.setCompression(true);
+        client.connect().get();
+        BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in));
+        String input;
+        while ((input = consoleReader.readLine()) != null) {
+            client.send(input);
+            if (client.readyToQuit(input)) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,863 @@
+package AIO.server;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+import NIO.codec.FrameCompressor;
+import NIO.codec.FrameDecoder;
+import NIO.codec.FrameEncoder;
+import NIO.codec.TextDecoder;
+import NIO.store.LogSlice;
+import NIO.store.MessageStore;
+import common.Command;
+import common.RoomIndex;
+import common.config.ServerConfig;
+import common.lifecycle.Handoff;
+import common.limit.FloodPolicy;
+import common.limit.RateLimiter;
+import common.log.AsyncLogger;
+import common.metrics.Histogram;
+import common.metrics.ServerMetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * proactor模式：AsynchronousServerSocketChannel加固定大小的AsynchronousChannelGroup，
+ * 内核完成读写之后在group的线程里回调，没有selector循环，也不是一个连接一个线程
+ * 协议和NIO服务器一样（长度前缀帧），LoadGenerator用frame协议指定端口就能压，三种模型可以在同样的负载下对比
+ * 房间、命令、私聊、历史回放、限速和空闲检测都和NIO服务器一样；不转发文件，文件内容收到就丢掉；不支持集群
+ * 空闲检测和限速的延迟读用一个单线程的定时器，AsynchronousSocketChannel的读超时触发之后就不能再读了
+ * 压缩和NIO服务器一样，每个group线程一个FrameCompressor，广播在发送者的读回调里压缩一次
+ * 关闭：shutdown关掉监听、停止写日志，通知每个客户端；之后照常读和转发，
+ * 整个服务器安静下来之后发送队列写完的就断开，超过drainTimeout的直接断开；热重启见Handoff
+ * 端口、backlog、socket选项、缓冲、队列这些都可以用ServerConfig配置，见main
+ */
+public class ChatServer {
+    private static final int DEFAULT_PORT = 9999;
+    private static final String QUIT = "quit";
+    private static final int DEFAULT_MAX_QUEUED_MESSAGES = 1024;
+    //转发时要加上"客户端[用户名]私聊:"，用户名最多32个字符，留出前缀的位置，
+    //转发出去的帧才不会超过接收者FrameDecoder的上限
+    private static final int MAX_MESSAGE_LENGTH = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH - 128;
+    private static final int DEFAULT_HISTORY_SIZE = 20;
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 64;
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final int DEFAULT_DRAIN_TIMEOUT_SECONDS = 10;
+    //排空时每隔多久检查一次发送队列，这段时间里没有收到消息才开始断开
+    private static final long DRAIN_CHECK_MILLIS = 100;
+
+    private volatile AsynchronousChannelGroup group;
+    private AsynchronousServerSocketChannel server;
+    //空闲检测和限速之后恢复读取
+    private ScheduledExecutorService timers;
+    private AtomicLong nextSessionId = new AtomicLong();
+    //用户名 -> 会话，私聊一次查找
+    private ConcurrentHashMap<String, Session> users = new ConcurrentHashMap<>();
+    //房间 -> 成员，转发只发给同房间的人
+    private RoomIndex<Session> rooms = new RoomIndex<>();
+    private Charset charset = Charset.forName("UTF-8");
+    //backlog、socket选项和读缓冲大小，按ServerConfig创建时用它的，否则都是默认值
+    private ServerConfig config = new ServerConfig(DEFAULT_PORT);
+    //读缓冲、半包、编码后的帧都从这里借堆外buffer
+    private BufferPool bufferPool = new BufferPool();
+    private FrameEncoder encoder = new FrameEncoder(charset, bufferPool);
+    //回调会落在group的任意一个线程上，解码器按线程缓存
+    private ThreadLocal<TextDecoder> textDecoders = ThreadLocal.withInitial(() -> new TextDecoder(charset));
+    private ThreadLocal<List<ByteBuffer>> frames = ThreadLocal.withInitial(ArrayList::new);
+    //group的线程和服务器一样长寿，Deflater的native内存在线程结束之后由它自己的Cleaner释放
+    private ThreadLocal<FrameCompressor> compressors = ThreadLocal.withInitial(() -> new FrameCompressor(bufferPool));
+    private ServerMetrics metrics = new ServerMetrics("aio");
+    //group的线程都会记录，共用一份直方图
+    private Histogram fanOutLatency = metrics.fanOutLatency.newShard();
+    private Histogram queueDepth = metrics.queueDepth.newShard();
+    private int port;
+    //group的线程数
+    private int threadCount;
+    //纯文本统计的HTTP端口，0表示不开
+    private int statsPort;
+    private int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    //每个客户端的限速，都为0表示不限；超限之后的处理
+    private double messagesPerSecond;
+    private int messageBurst;
+    private double bytesPerSecond;
+    private int byteBurst;
+    private FloodPolicy floodPolicy = FloodPolicy.DELAY;
+    //消息日志目录，null表示不保存历史；和NIO服务器在同一个目录下跑时不能共用日志
+    private Path logDir = Paths.get("chat-log-aio");
+    private int historySize = DEFAULT_HISTORY_SIZE;
+    private MessageStore store;
+    //多久没有收到数据就断开，0表示不检测
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_SECONDS);
+    //帧超过这么多字节才压缩，0表示不支持压缩
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    //开了压缩的连接数，没有的时候广播不用压缩
+    private AtomicInteger compressedConnections = new AtomicInteger();
+    //关闭时最多等多久把发送队列写完
+    private long drainTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_DRAIN_TIMEOUT_SECONDS);
+    //热重启交接，不为null时用SO_REUSEPORT绑定端口
+    private Handoff handoff;
+    //开始排空之后不再accept、不再写日志
+    private volatile boolean draining;
+    //start返回之前countDown，shutdown等它
+    private CountDownLatch stopped = new CountDownLatch(1);
+
+    public ChatServer() {
+        this(DEFAULT_PORT);
+    }
+
+    public ChatServer(int port) {
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ChatServer(int port, int threadCount) {
+        this.port = port;
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * 按配置创建，之后还可以用setter改；NIO专有的项（慢客户端策略、flush延迟、集群等）忽略
+     */
+    @SuppressWarnings("this-escape")
+    public ChatServer(ServerConfig config) {
+        //NIO的0表示单reactor，group至少要一个线程
+        this(config.port(), Math.max(1, config.ioThreads()));
+        this.config = config;
+        this.bufferPool = new BufferPool(config.poolBytesPerClass());
+        this.encoder = new FrameEncoder(charset, bufferPool);
+        setStatsPort(config.statsPort());
+        setMaxQueuedMessages(config.maxQueuedMessages());
+        setWriteBatchSize(config.writeBatchSize());
+        setIdleTimeoutSeconds(config.idleTimeoutSeconds());
+        setDrainTimeoutSeconds(config.drainTimeoutSeconds());
+        setRateLimit(config.messagesPerSecond(), config.messageBurst(), config.bytesPerSecond(), config.byteBurst());
+        setFloodPolicy(config.floodPolicy());
+        if (config.logDir() != null) {
+            setLogDir(config.logDir().isEmpty() ? null : Paths.get(config.logDir()));
+        }
+        setHistorySize(config.historySize());
+        setCompressionThreshold(config.compressionThreshold());
+        setHandoffFile(config.handoffFile());
+    }
+
+    //主逻辑，处理exception
+    public void start() {
+        try {
+            group = AsynchronousChannelGroup.withFixedThreadPool(threadCount, namedThreads("aio"));
+            timers = Executors.newSingleThreadScheduledExecutor(namedThreads("aio-timer"));
+            server = AsynchronousServerSocketChannel.open(group);
+            if (handoff != null || config.reusePort()) {
+                //老进程还在监听，新进程也能绑定同一个端口
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (config.receiveBufferSize() > 0) {
+                //accept出来的连接继承监听socket的接收缓冲，要在握手之前设置
+                server.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize());
+            }
+            //accept的完成事件和读写的排在同一个队列里，负载高时accept会晚，
+            //backlog开大一些（默认1024），新连接在内核里排队，不会因为accept队列满被丢掉
+            server.bind(new InetSocketAddress(port), config.backlog());
+            if (logDir != null) {
+                store = new MessageStore(logDir);
+            }
+            if (handoff == null) {
+                metrics.start(statsPort);
+            } else {
+                //等老进程不再写日志再开始；统计端口不能复用，老进程退出之后再绑定
+                handoff.takeOver().thenRun(() -> metrics.start(statsPort));
+            }
+            AsyncLogger.info("启动服务器，监听端口：" + port + "，线程数：" + threadCount + "...");
+            accept();
+            //和另外两种服务器一样阻塞在start，group关闭之后才返回
+            group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(server);
+            if (group != null) {
+                group.shutdown();
+            }
+            if (timers != null) {
+                timers.shutdownNow();
+            }
+            metrics.stop();
+            if (store != null) {
+                store.flush();
+            }
+            if (handoff != null) {
+                handoff.release();
+            }
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * 优雅关闭，任何线程都可以调用（比如shutdown hook），排空之后才返回
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (draining || group == null) {
+                return;
+            }
+            draining = true;
+        }
+        //在途的accept以AsynchronousCloseException结束
+        close(server);
+        if (store != null) {
+            store.flush();
+        }
+        //新进程等的就是这一步
+        if (handoff != null) {
+            handoff.release();
+        }
+        AsyncLogger.info("停止接受新连接，开始排空发送队列...");
+        List<Session> sessions = new ArrayList<>(users.values());
+        for (Session session : sessions) {
+            reply(session, "服务器正在关闭，请稍后重新连接");
+        }
+        long deadline = System.nanoTime() + drainTimeoutNanos;
+        long lastMessagesIn = -1;
+        try {
+            while (!sessions.isEmpty() && System.nanoTime() - deadline < 0) {
+                //已经发出的消息还在转发时谁都不断开，不然后到的接收者会漏掉；
+                //安静下来之后发送队列写完的断开，写进socket发送缓冲的部分关闭之后内核照样会发出去
+                long messagesIn = metrics.messagesIn.sum();
+                if (messagesIn == lastMessagesIn) {
+                    for (Session session : sessions) {
+                        if (session.queuedMessages() == 0) {
+                            disconnect(session);
+                        }
+                    }
+                    sessions.removeIf(Session::isClosed);
+                }
+                lastMessagesIn = messagesIn;
+                if (!sessions.isEmpty()) {
+                    Thread.sleep(DRAIN_CHECK_MILLIS);
+                }
+            }
+            if (!sessions.isEmpty()) {
+                AsyncLogger.info("排空超时，" + sessions.size() + "个连接的消息没有发完");
+                for (Session session : sessions) {
+                    disconnect(session);
+                }
+            }
+            //所有连接都关了，group没有在途的操作，start从awaitTermination返回
+            group.shutdown();
+            stopped.await(DEFAULT_DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //同一时刻只有一个accept在途，连上一个再接下一个
+    private void accept() {
+        server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            @Override
+            public void completed(AsynchronousSocketChannel client, Void attachment) {
+                accept();
+                register(client);
+            }
+
+            @Override
+            public void failed(Throwable exc, Void attachment) {
+                if (exc instanceof AsynchronousCloseException || !server.isOpen()) {
+                    //服务器关闭了
+                    return;
+                }
+                //比如文件描述符用完了，不能因为一次失败就不再accept
+                AsyncLogger.info("accept失败：" + exc.getMessage());
+                accept();
+            }
+        });
+    }
+
+    private void register(AsynchronousSocketChannel client) {
+        if (draining) {
+            close(client);
+            return;
+        }
+        Session session;
+        try {
+            client.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay());
+            if (config.sendBufferSize() > 0) {
+                client.setOption(StandardSocketOptions.SO_SNDBUF, config.sendBufferSize());
+            }
+            if (config.receiveBufferSize() > 0) {
+                client.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize());
+            }
+            session = new Session(nextSessionId.incrementAndGet(), this, client, bufferPool,
+                    config.readBufferSize(), maxQueuedMessages, writeBatchSize);
+            AsyncLogger.info(session.name() + client.getRemoteAddress() + "已连接到服务器");
+        } catch (IOException e) {
+            e.printStackTrace();
+            close(client);
+            return;
+        }
+        metrics.connectionsOpened.increment();
+        rooms.join(session.room(), session);
+        users.put(session.nick(), session);
+        if (messagesPerSecond > 0 || bytesPerSecond > 0) {
+            session.setRateLimiter(new RateLimiter(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst, metrics));
+        }
+        if (idleTimeoutNanos > 0) {
+            scheduleIdleCheck(session, idleTimeoutNanos / 2);
+        }
+        replayHistory(session, -1, false);
+        session.read();
+    }
+
+    private void scheduleIdleCheck(final Session session, long delayNanos) {
+        session.setIdleCheck(timers.schedule(() -> checkIdle(session), delayNanos, TimeUnit.NANOSECONDS));
+    }
+
+    //定时器线程里调用，读的时候只更新时间戳
+    private void checkIdle(Session session) {
+        if (session.isClosed()) {
+            return;
+        }
+        long idle = System.nanoTime() - session.lastActiveAt();
+        if (idle >= idleTimeoutNanos) {
+            AsyncLogger.info(session.name() + "心跳超时，断开连接");
+            metrics.idleEvictions.increment();
+            disconnect(session);
+            return;
+        }
+        long pingAfter = idleTimeoutNanos / 2;
+        if (idle >= pingAfter) {
+            //对端回/pong或者发任何消息都算活着
+            deliver(session, encoder.encode(Command.PING));
+            scheduleIdleCheck(session, idleTimeoutNanos - idle);
+        } else {
+            scheduleIdleCheck(session, pingAfter - idle);
+        }
+    }
+
+    /**
+     * 处理一次read读到的字节，在读回调里调用
+     * @param in 读模式，调用后被读完
+     * @return 0表示接着读，大于0表示超过限速，过这么多纳秒再读，小于0表示连接已经断开
+     */
+    long process(Session session, ByteBuffer in) throws IOException {
+        FrameDecoder decoder = session.decoder();
+        List<ByteBuffer> frames = this.frames.get();
+        TextDecoder textDecoder = textDecoders.get();
+        long delay = 0;
+        while (true) {
+            if (decoder.inRaw()) {
+                decoder.skipRaw(in);
+                if (decoder.inRaw()) {
+                    return delay;
+                }
+            }
+            frames.clear();
+            decoder.decode(in, frames);
+            //拆出来的帧是读缓冲或半包缓冲的视图，返回之前要处理掉
+            for (ByteBuffer frame : frames) {
+                long wait = rateLimited(session, frame.remaining());
+                if (wait < 0) {
+                    if (session.isClosed()) {
+                        frames.clear();
+                        return -1;
+                    }
+                    continue;
+                }
+                delay = Math.max(delay, wait);
+                if (frame.remaining() > MAX_MESSAGE_LENGTH) {
+                    reply(session, "消息过长，最多" + MAX_MESSAGE_LENGTH + "字节，没有发送");
+                    continue;
+                }
+                if (!handleMessage(session, textDecoder.decode(frame))) {
+                    frames.clear();
+                    return -1;
+                }
+            }
+            frames.clear();
+            if (decoder.takeFileHeader() == null) {
+                decoder.discardReadBytes();
+                return delay;
+            }
+            reply(session, "AIO服务器不支持发送文件");
+        }
+    }
+
+    /**
+     * 检查限速，超限时按floodPolicy处理
+     * @return 小于0表示这条消息不处理了（丢弃或者连接已经断开），大于0表示要推迟这么多纳秒再读
+     */
+    private long rateLimited(Session session, int size) {
+        RateLimiter limiter = session.rateLimiter();
+        if (limiter == null) {
+            return 0;
+        }
+        long wait = limiter.acquire(size);
+        if (wait == 0) {
+            return 0;
+        }
+        switch (floodPolicy) {
+            case DELAY:
+                //这次读到的照常处理，欠账还清之前不发起下一次读
+                limiter.forceAcquire(size);
+                return wait;
+            case DISCONNECT:
+                AsyncLogger.info(session.name() + "发送过快，断开连接");
+                disconnect(session);
+                return -1;
+            default:
+                if (limiter.shouldNotify()) {
+                    reply(session, "发送太快，消息被丢弃");
+                }
+                return -1;
+        }
+    }
+
+    /**
+     * 处理一条消息
+     * @return false表示连接已经断开，剩下的不用处理了
+     */
+    private boolean handleMessage(Session session, CharBuffer fwdMsg) {
+        metrics.messagesIn.increment();
+        //房间命令不转发，只有/和@开头的才转成String解析
+        if (fwdMsg.hasRemaining() && (fwdMsg.get(0) == '/' || fwdMsg.get(0) == '@')) {
+            Command command = Command.parse(fwdMsg.toString());
+            if (command != null) {
+                handleCommand(session, command);
+                return !session.isClosed();
+            }
+        }
+        forwardMessage(session, fwdMsg);
+        if (QUIT.contentEquals(fwdMsg)) {
+            AsyncLogger.info(session.name() + "已断开连接");
+            disconnect(session);
+            return false;
+        }
+        return true;
+    }
+
+    private void forwardMessage(Session sender, CharSequence fwdMsg) {
+        String text = sender.name() + ':' + fwdMsg;
+        AsyncLogger.info(text);
+        //整条广播只编码一次，每个接收者拿一个共享内存、独立position的只读视图
+        PooledBuffer frame = encodeMessage(sender, text);
+        if (frame == null) {
+            return;
+        }
+        appendLog(sender.room(), frame);
+        broadcast(sender, sender.room(), frame, compress(frame));
+    }
+
+    /**
+     * 长度在收的时候检查过了，但非法字节解码成U+FFFD之后会变长，编码之后还是可能超过上限
+     * @return 超过上限时回复发送者并返回null
+     */
+    private PooledBuffer encodeMessage(Session sender, CharSequence text) {
+        try {
+            return encoder.encode(text);
+        } catch (IllegalArgumentException e) {
+            reply(sender, "消息过长，没有发送");
+            return null;
+        }
+    }
+
+    /**
+     * 有人开了压缩并且帧够大时压缩一次，给所有开了压缩的接收者共用
+     * @return 不用压缩或者压缩之后没变小时返回null
+     */
+    private PooledBuffer compress(PooledBuffer frame) {
+        if (compressionThreshold <= 0 || frame.buffer().remaining() < compressionThreshold
+                || compressedConnections.get() == 0) {
+            return null;
+        }
+        return compressors.get().compress(frame.buffer());
+    }
+
+    private void appendLog(String room, PooledBuffer frame) {
+        //排空时日志可能已经交给了新进程
+        if (store != null && !draining) {
+            try {
+                store.append(room, frame.buffer());
+            } catch (IOException e) {
+                //写日志失败不影响在线的人收消息
+                e.printStackTrace();
+            }
+        }
+    }
+
+    //发给房间里除发送者以外的人，只入队，写由各自的写回调完成；frame和compressed交给broadcast负责release
+    //compressed为null表示不压缩
+    private void broadcast(Session sender, String room, PooledBuffer frame, PooledBuffer compressed) {
+        long start = System.nanoTime();
+        List<Session> failed = null;
+        int compressedCount = 0;
+        for (Session recipient : rooms.members(room)) {
+            if (recipient == sender) {
+                continue;
+            }
+            PooledBuffer copy;
+            if (compressed != null && recipient.isCompression()) {
+                copy = compressed.retainedDuplicate();
+                compressedCount++;
+            } else {
+                copy = frame.retainedDuplicate();
+            }
+            if (!recipient.enqueue(copy) && !recipient.isClosed()) {
+                AsyncLogger.info(recipient.name() + "接收过慢，断开连接");
+                if (failed == null) {
+                    failed = new ArrayList<>();
+                }
+                failed.add(recipient);
+            }
+        }
+        fanOutLatency.record(System.nanoTime() - start);
+        if (compressed != null) {
+            if (compressedCount > 0) {
+                metrics.compressedFrames.add(compressedCount);
+                metrics.compressionSavedBytes.add((long) compressedCount
+                        * (frame.buffer().remaining() - compressed.buffer().remaining()));
+            }
+            compressed.release();
+        }
+        frame.release();
+        //遍历完再断开，避免边遍历边修改
+        if (failed != null) {
+            for (Session session : failed) {
+                disconnect(session);
+            }
+        }
+    }
+
+    /**
+     * 回放当前房间的历史消息，直接把日志映射区的切片放进发送队列，不重新编码
+     * @param offset 从这个位置开始，小于0表示最近historySize条
+     * @param always 没有历史消息时是否也回复下一条的位置
+     */
+    private void replayHistory(Session session, long offset, boolean always) {
+        if (store == null) {
+            if (always) {
+                reply(session, "服务器没有保存历史消息");
+            }
+            return;
+        }
+        List<ByteBuffer> slices = new ArrayList<>();
+        long next;
+        try {
+            next = store.read(session.room(), offset, historySize, slices);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (slices.isEmpty() && !always) {
+            return;
+        }
+        for (ByteBuffer slice : slices) {
+            if (session.isCompression()) {
+                enqueueCompressed(session, slice);
+            } else {
+                session.enqueue(new LogSlice(slice));
+            }
+        }
+        //客户端记下这个位置，重连之后用/history 位置补上错过的消息
+        reply(session, "历史消息到此为止，下一条位置：" + next);
+    }
+
+    //历史日志的切片按块压缩之后发，块太小或者压不动的照原样发
+    private void enqueueCompressed(Session session, ByteBuffer slice) {
+        FrameCompressor compressor = compressors.get();
+        while (slice.hasRemaining()) {
+            ByteBuffer chunk = slice.duplicate();
+            chunk.limit(FrameCompressor.chunkEnd(slice));
+            slice.position(chunk.limit());
+            PooledBuffer compressed = chunk.remaining() < compressionThreshold ? null : compressor.compress(chunk);
+            if (compressed == null) {
+                session.enqueue(new LogSlice(chunk));
+            } else {
+                metrics.compressedFrames.increment();
+                metrics.compressionSavedBytes.add(chunk.remaining() - compressed.buffer().remaining());
+                session.enqueue(compressed);
+            }
+        }
+    }
+
+    //处理房间命令，结果只回复给发命令的人，在读回调里调用
+    private void handleCommand(Session session, Command command) {
+        switch (command.type()) {
+            case JOIN:
+                if (command.argument().isEmpty()) {
+                    reply(session, "用法：/join 房间名");
+                } else {
+                    changeRoom(session, command.argument());
+                }
+                break;
+            case LEAVE:
+                changeRoom(session, RoomIndex.DEFAULT_ROOM);
+                break;
+            case ROOM:
+                reply(session, "当前房间[" + session.room() + "]，共" + rooms.size(session.room()) + "人");
+                break;
+            case NICK:
+                changeNick(session, command.argument());
+                break;
+            case DIRECT:
+                sendDirect(session, command.argument(), command.text());
+                break;
+            case HISTORY:
+                if (command.argument().isEmpty()) {
+                    replayHistory(session, -1, true);
+                } else {
+                    try {
+                        replayHistory(session, Long.parseLong(command.argument()), true);
+                    } catch (NumberFormatException e) {
+                        reply(session, "用法：/history [位置]");
+                    }
+                }
+                break;
+            case PING:
+                reply(session, Command.PONG);
+                break;
+            case PONG:
+                //读回调已经更新了活跃时间
+                break;
+            case COMPRESS:
+                changeCompression(session, command.argument());
+                break;
+        }
+    }
+
+    private void changeCompression(Session session, String argument) {
+        boolean on;
+        if (argument.isEmpty() || "deflate".equals(argument)) {
+            on = true;
+        } else if ("off".equals(argument)) {
+            on = false;
+        } else {
+            reply(session, "用法：/compress [deflate|off]");
+            return;
+        }
+        if (on && compressionThreshold <= 0) {
+            reply(session, "服务器没有开启压缩");
+            return;
+        }
+        if (on != session.isCompression()) {
+            session.setCompression(on);
+            if (on) {
+                compressedConnections.incrementAndGet();
+            } else {
+                compressedConnections.decrementAndGet();
+            }
+        }
+        reply(session, on ? "已开启压缩：deflate，超过" + compressionThreshold + "字节的消息压缩之后发送" : "已关闭压缩");
+    }
+
+    private void changeRoom(Session session, String room) {
+        rooms.leave(session.room(), session);
+        session.setRoom(room);
+        rooms.join(room, session);
+        reply(session, "已加入房间[" + room + "]");
+        replayHistory(session, -1, false);
+    }
+
+    private void changeNick(Session session, String nick) {
+        if (!Command.isValidNick(nick)) {
+            reply(session, "用法：/nick 名字（不能有空格，不能全是数字）");
+            return;
+        }
+        //先占新名字再放旧名字，两个人同时抢一个名字只有一个成功
+        if (users.putIfAbsent(nick, session) != null) {
+            reply(session, "用户名[" + nick + "]已被占用");
+            return;
+        }
+        users.remove(session.nick(), session);
+        session.setNick(nick);
+        reply(session, "用户名已改为[" + nick + "]");
+    }
+
+    //私聊：一次查找，一次入队
+    private void sendDirect(Session sender, String nick, String text) {
+        if (text.isEmpty()) {
+            reply(sender, "用法：@用户名 内容");
+            return;
+        }
+        //不合法的名字不会有人用，也不能原样放进回复里
+        if (!Command.isValidName(nick)) {
+            reply(sender, "用法：@用户名 内容");
+            return;
+        }
+        Session target = users.get(nick);
+        if (target == null) {
+            reply(sender, "用户[" + nick + "]不在线");
+            return;
+        }
+        PooledBuffer frame = encodeMessage(sender, sender.name() + "私聊:" + text);
+        if (frame != null) {
+            deliver(target, frame);
+        }
+    }
+
+    private void reply(Session session, String msg) {
+        deliver(session, encoder.encode(msg));
+    }
+
+    //frame交给接收者release
+    private void deliver(Session recipient, PooledBuffer frame) {
+        if (!recipient.enqueue(frame) && !recipient.isClosed()) {
+            AsyncLogger.info(recipient.name() + "接收过慢，断开连接");
+            disconnect(recipient);
+        }
+    }
+
+    /**
+     * 断开一个会话，可以在任意线程调用，重复调用没关系
+     */
+    void disconnect(Session session) {
+        if (!session.close()) {
+            return;
+        }
+        metrics.connectionsClosed.increment();
+        if (session.isCompression()) {
+            compressedConnections.decrementAndGet();
+        }
+        rooms.leave(session.room(), session);
+        users.remove(session.nick(), session);
+    }
+
+    //读写失败时调用，主动关闭引起的失败不打日志
+    void disconnect(Session session, Throwable cause) {
+        if (!session.isClosed() && !(cause instanceof AsynchronousCloseException)) {
+            AsyncLogger.info(session.name() + "异常：" + cause.getMessage());
+        }
+        disconnect(session);
+    }
+
+    ServerMetrics metrics() {
+        return metrics;
+    }
+
+    Histogram queueDepth() {
+        return queueDepth;
+    }
+
+    ScheduledExecutorService timers() {
+        return timers;
+    }
+
+    public BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
+
+    public void setMaxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * 每个客户端每秒最多发多少条消息、多少字节，burst是允许的突发量，0表示不限
+     */
+    public void setRateLimit(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.messageBurst = messageBurst;
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteBurst = byteBurst;
+    }
+
+    public void setFloodPolicy(FloodPolicy floodPolicy) {
+        this.floodPolicy = floodPolicy;
+    }
+
+    public void setLogDir(Path logDir) {
+        this.logDir = logDir;
+    }
+
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    /**
+     * 帧超过这么多字节才压缩，0表示不支持压缩
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public void setDrainTimeoutSeconds(int drainTimeoutSeconds) {
+        this.drainTimeoutNanos = TimeUnit.SECONDS.toNanos(drainTimeoutSeconds);
+    }
+
+    /**
+     * 热重启：用SO_REUSEPORT绑定端口，按pid文件接管老进程，为null表示不交接
+     */
+    public void setHandoffFile(Path pidFile) {
+        this.handoff = pidFile == null ? null : new Handoff(pidFile);
+    }
+
+    public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    }
+
+    public boolean readyToQuit(String msg) {
+        return QUIT.equals(msg);
+    }
+
+    public void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static ThreadFactory namedThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, prefix + "-" + count.incrementAndGet());
+    }
+
+    public static void main(String[] args) {
+        //位置参数依次是group线程数（默认每个核一个）、统计端口、端口；其他的用--key=value或者--config=文件，
+        //热重启用--handoffFile=pid文件
+        ChatServer chatServer;
+        try {
+            chatServer = new ChatServer(ServerConfig.parse(args, DEFAULT_PORT, "ioThreads", "statsPort", "port"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("配置有误：" + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.err.println("读取配置文件失败：" + e);
+            return;
+        }
+        //kill或者Ctrl+C时先排空再退出
+        Runtime.getRuntime().addShutdownHook(new Thread(chatServer::shutdown, "shutdown"));
+        chatServer.start();
+    }
+}
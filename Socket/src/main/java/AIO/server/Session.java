@@ -0,0 +1,357 @@
+package AIO.server;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.Outbound;
+import NIO.buffer.PooledBuffer;
+import NIO.codec.FrameDecoder;
+import common.RoomIndex;
+import common.limit.RateLimiter;
+import common.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个客户端连接（会话），读写都是异步的，回调在channel group的线程里执行
+ * 同一时刻只有一个读在途，半包、限速这些只在读回调里按顺序访问，不用加锁
+ * 发送队列可以在任意线程入队，用this加锁；同一时刻只有一个写在途，
+ * 写完之后把队列里攒下的帧合并成一次gathering write
+ * 读回调里入队的帧先不发起写，回调结束时统一发起，这次读到的几条消息发给同一个人时合并成一次写
+ */
+public class Session {
+    //group线程当前读回调里入队、还没发起写的会话，不在读回调里时为inactive
+    private static final ThreadLocal<WriteBatch> BATCH = ThreadLocal.withInitial(WriteBatch::new);
+
+    private final long id;
+    private volatile String nick;
+    private volatile String name;
+    private final ChatServer server;
+    private final AsynchronousSocketChannel channel;
+    private final FrameDecoder decoder;
+    private final ServerMetrics metrics;
+    //读缓冲只被在途的读或者读回调使用，读结束的时候还回池里
+    private final PooledBuffer rBuffer;
+    //当前所在房间，只在读回调里修改
+    private volatile String room = RoomIndex.DEFAULT_ROOM;
+    //限速，没配置时为null
+    private RateLimiter rateLimiter;
+    //最后一次收到数据的时间，空闲检测用
+    private volatile long lastActiveAt = System.nanoTime();
+    //定时器上的空闲检测，没开时为null
+    private volatile Future<?> idleCheck;
+    //客户端发了/compress，广播和历史回放可以发压缩帧
+    private volatile boolean compression;
+
+    //下面几个用this加锁
+    private final Deque<Outbound> outbound = new ArrayDeque<>();
+    private final int maxQueuedMessages;
+    //有一个写在途，gather只被在途的写使用
+    private boolean writing;
+    //在某个线程的WriteBatch里等着发起写
+    private boolean batched;
+    private boolean closed;
+    private final ByteBuffer[] gather;
+
+    private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+        @Override
+        public void completed(Integer count, Void attachment) {
+            if (count < 0) {
+                //客户端关闭了连接
+                server.disconnect(Session.this);
+                finishReading();
+                return;
+            }
+            metrics.bytesIn.add(count);
+            touch();
+            long delay;
+            WriteBatch batch = BATCH.get();
+            batch.active = true;
+            try {
+                ByteBuffer in = rBuffer.buffer();
+                in.flip();
+                delay = server.process(Session.this, in);
+                in.clear();
+            } catch (IOException e) {
+                //帧不合法，只断开这一个客户端
+                server.disconnect(Session.this, e);
+                delay = -1;
+            } finally {
+                batch.flush();
+            }
+            if (delay < 0 || isClosed()) {
+                finishReading();
+            } else if (delay > 0) {
+                //超过限速，过一会儿再读，TCP窗口会让客户端慢下来
+                server.timers().schedule(Session.this::read, delay, TimeUnit.NANOSECONDS);
+            } else {
+                read();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            server.disconnect(Session.this, exc);
+            finishReading();
+        }
+    };
+
+    private final CompletionHandler<Long, Void> writeHandler = new CompletionHandler<Long, Void>() {
+        @Override
+        public void completed(Long written, Void attachment) {
+            metrics.bytesOut.add(written);
+            metrics.writeCalls.increment();
+            boolean more;
+            synchronized (Session.this) {
+                Outbound head;
+                while ((head = outbound.peekFirst()) != null && !head.hasRemaining()) {
+                    outbound.pollFirst().release();
+                }
+                more = !closed && !outbound.isEmpty();
+                if (!more) {
+                    writing = false;
+                    if (closed) {
+                        drain();
+                    }
+                }
+            }
+            if (more) {
+                writeNext();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            synchronized (Session.this) {
+                writing = false;
+                //已经close过的，disconnect不会再drain
+                if (closed) {
+                    drain();
+                }
+            }
+            server.disconnect(Session.this, exc);
+        }
+    };
+
+    public Session(long id, ChatServer server, AsynchronousSocketChannel channel, BufferPool pool,
+                   int bufferSize, int maxQueuedMessages, int writeBatchSize) {
+        this.id = id;
+        this.server = server;
+        this.channel = channel;
+        this.decoder = new FrameDecoder(pool);
+        this.metrics = server.metrics();
+        this.rBuffer = pool.allocate(bufferSize);
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.gather = new ByteBuffer[writeBatchSize];
+        //构造器里不调用可以被覆盖的setNick
+        this.nick = String.valueOf(id);
+        this.name = displayName(nick);
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String nick() {
+        return nick;
+    }
+
+    public void setNick(String nick) {
+        this.nick = nick;
+        this.name = displayName(nick);
+    }
+
+    private static String displayName(String nick) {
+        return "客户端[" + nick + "]";
+    }
+
+    public String room() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    public AsynchronousSocketChannel channel() {
+        return channel;
+    }
+
+    public FrameDecoder decoder() {
+        return decoder;
+    }
+
+    RateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    long lastActiveAt() {
+        return lastActiveAt;
+    }
+
+    void touch() {
+        lastActiveAt = System.nanoTime();
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    void setIdleCheck(Future<?> idleCheck) {
+        this.idleCheck = idleCheck;
+    }
+
+    public synchronized int queuedMessages() {
+        return outbound.size();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * 发起下一次读，读完之后由ChatServer.process处理
+     */
+    void read() {
+        if (isClosed()) {
+            finishReading();
+            return;
+        }
+        channel.read(rBuffer.buffer(), null, readHandler);
+    }
+
+    /**
+     * 把一帧放进发送队列，可以在任意线程调用，frame交给本会话负责release
+     * 在途的写还在用队头的帧，不能像NIO服务器那样丢最老的，队列满了和BIO服务器一样由调用者断开
+     * @return false表示已经关闭或者队列满了
+     */
+    public boolean enqueue(Outbound frame) {
+        boolean start = false;
+        synchronized (this) {
+            if (closed || outbound.size() >= maxQueuedMessages) {
+                frame.release();
+                return false;
+            }
+            server.queueDepth().record(outbound.size());
+            outbound.addLast(frame);
+            if (!writing && !batched) {
+                WriteBatch batch = BATCH.get();
+                if (batch.active) {
+                    batched = true;
+                    batch.sessions.add(this);
+                } else {
+                    writing = true;
+                    start = true;
+                }
+            }
+        }
+        metrics.messagesOut.increment();
+        if (start) {
+            writeNext();
+        }
+        return true;
+    }
+
+    /**
+     * 关闭连接，在途的读写会以失败回调结束，还没写出去的帧丢掉
+     * @return 只有第一次调用返回true
+     */
+    boolean close() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            //在途的写还在用队头的buffer，等写回调里再还
+            if (!writing) {
+                drain();
+            }
+        }
+        Future<?> check = idleCheck;
+        if (check != null) {
+            check.cancel(false);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    //队头连续的帧合并成一次write(ByteBuffer[])，只在writing为true的线程里调用
+    private void writeNext() {
+        int count = 0;
+        synchronized (this) {
+            Arrays.fill(gather, null);
+            for (Outbound frame : outbound) {
+                if (count == gather.length) {
+                    break;
+                }
+                gather[count++] = frame.nioBuffer();
+            }
+        }
+        channel.write(gather, 0, count, 0L, TimeUnit.MILLISECONDS, null, writeHandler);
+    }
+
+    //WriteBatch结束时调用
+    private void flushBatched() {
+        synchronized (this) {
+            batched = false;
+            if (writing || closed || outbound.isEmpty()) {
+                return;
+            }
+            writing = true;
+        }
+        writeNext();
+    }
+
+    //持有锁调用
+    private void drain() {
+        Outbound frame;
+        while ((frame = outbound.pollFirst()) != null) {
+            frame.release();
+        }
+    }
+
+    //读的那一条链结束了，归还读缓冲和半包
+    private void finishReading() {
+        decoder.release();
+        rBuffer.release();
+    }
+
+    //一个group线程在一次读回调里攒下的待写会话
+    private static class WriteBatch {
+        private final List<Session> sessions = new ArrayList<>();
+        private boolean active;
+
+        void flush() {
+            active = false;
+            //发起写可能直接在本线程完成并回调，回调里再入队的不进这一批
+            for (int i = 0; i < sessions.size(); i++) {
+                sessions.get(i).flushBatched();
+            }
+            sessions.clear();
+        }
+    }
+}
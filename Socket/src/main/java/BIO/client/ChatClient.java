@@ -1,5 +1,7 @@
 package BIO.client;
 
+import common.Command;
+
 import java.io.*;
 import java.net.Socket;
 
@@ -15,7 +17,8 @@ public class ChatClient {
     private BufferedWriter writer;
     private BufferedReader reader;
 
-    public void send(String msg) throws IOException {
+    //输入线程发消息，接收线程回心跳
+    public synchronized void send(String msg) throws IOException {
         if (!socket.isOutputShutdown()) {
             writer.write(msg + "\n");
             writer.flush();
@@ -54,6 +57,11 @@ public class ChatClient {
             //处理转发信息,打印
             String msg=null;
             while((msg=reader.readLine())!=null){
+                if(Command.PING.equals(msg)){
+                    //服务器的心跳，不显示
+                    send(Command.PONG);
+                    continue;
+                }
                 System.out.println(msg);
             }
         } catch (IOException e) {
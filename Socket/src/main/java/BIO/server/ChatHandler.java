@@ -1,9 +1,15 @@
 package BIO.server;
 
-import java.io.BufferedReader;
+import common.Command;
+import common.limit.FloodPolicy;
+import common.limit.RateLimiter;
+import common.log.AsyncLogger;
+
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 接受客户端信息
@@ -19,29 +25,89 @@ public class ChatHandler implements Runnable {
 
     @Override
     public void run() {
+        ClientSession session = null;
         try {
-            server.addClient(socket);
-            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            if (server.isDraining()) {
+                //在线程池队列里等到了服务器关闭
+                socket.close();
+                return;
+            }
+            session = server.addClient(socket);
+            //不用BufferedReader：它读超时的时候会把已经读到的半行丢掉
+            LineReader lineReader = new LineReader(new InputStreamReader(
+                    server.metrics().countBytesIn(socket.getInputStream())));
+            long idleTimeout = server.idleTimeoutNanos();
+            if (idleTimeout > 0) {
+                //安静了一半空闲时间readLine就超时一次，检查要不要发心跳或者断开
+                socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleTimeout / 2)));
+            }
+            RateLimiter limiter = server.newRateLimiter();
             String msg = null;
-            //关闭则返回null
-            while ((msg = bufferedReader.readLine()) != null) {
-                String fwdMsg = "客户端[" + socket.getPort() + "]:" + msg + "\n";
-                System.out.print(fwdMsg);
+            while (true) {
+                try {
+                    msg = lineReader.readLine();
+                } catch (SocketTimeoutException e) {
+                    //半行留在lineReader里，下次接着读
+                    long idle = System.nanoTime() - lineReader.lastReadAt();
+                    if (idle >= idleTimeout) {
+                        AsyncLogger.info(session.name() + "心跳超时，断开连接");
+                        server.metrics().idleEvictions.increment();
+                        session.writer().abort();
+                        break;
+                    }
+                    if (idle >= idleTimeout / 2) {
+                        session.writer().offer(Command.PING + "\n");
+                    }
+                    continue;
+                }
+                //关闭则返回null
+                if (msg == null) {
+                    break;
+                }
+                //BIO按字符数算字节限速
+                long wait = limiter == null ? 0 : limiter.acquire(msg.length());
+                if (wait > 0) {
+                    if (server.floodPolicy() == FloodPolicy.DISCONNECT) {
+                        AsyncLogger.info(session.name() + "发送过快，断开连接");
+                        break;
+                    }
+                    if (server.floodPolicy() == FloodPolicy.DROP) {
+                        if (limiter.shouldNotify()) {
+                            session.writer().offer("发送太快，消息被丢弃\n");
+                        }
+                        continue;
+                    }
+                    //DELAY：读线程睡到欠账还清，期间不读，TCP窗口会让客户端慢下来
+                    limiter.forceAcquire(msg.length());
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                server.metrics().messagesIn.increment();
+                //房间命令不转发
+                Command command = Command.parse(msg);
+                if (command != null) {
+                    server.handleCommand(session, command);
+                    continue;
+                }
+                String fwdMsg = session.name() + ":" + msg + "\n";
+                AsyncLogger.info(session.name() + ":" + msg);
                 //转发信息
-                server.forwardMessage(socket, fwdMsg);
+                server.forwardMessage(session, fwdMsg);
                 //检查是否退出
                 if (server.readyToQuit(msg)) {
                     break;
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                server.removeClient(socket);
-            } catch (IOException e) {
+            //服务器主动关闭的socket不打印
+            if (!socket.isClosed()) {
                 e.printStackTrace();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (session != null) {
+                server.removeClient(session);
+            }
         }
     }
 }
\ No newline at end of file
@@ -1,66 +1,190 @@
 package BIO.server;
 
-import java.io.BufferedWriter;
+import common.Command;
+import common.RoomIndex;
+import common.config.ServerConfig;
+import common.lifecycle.Handoff;
+import common.limit.FloodPolicy;
+import common.limit.RateLimiter;
+import common.log.AsyncLogger;
+import common.metrics.Histogram;
+import common.metrics.ServerMetrics;
+
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.StandardSocketOptions;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 监听客户端建立连接的请求
  * 并将该客户端发的信息转发到其他客户端
+ * 统计信息通过JMX发布，设置了statsPort时还可以GET /stats；日志异步输出
+ * 空闲检测用SO_TIMEOUT：读超时时发/ping，整个空闲时间都没有收发就断开
+ * 关闭：shutdown关掉ServerSocket，通知每个客户端之后shutdownInput让读线程退出，
+ * 发送线程写完队列再关socket，超过drainTimeout还没写完的直接断开；热重启见Handoff
+ * 端口、backlog、socket选项、线程池大小这些都可以用ServerConfig配置，见main
  */
 public class ChatServer {
     private int DEFAULT_PORT = 8888;
     private final String QUIT = "quit";
+    //每个客户端发送队列的上限
+    private final int MAX_QUEUED_MESSAGES = 1024;
+    private final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    private final int DEFAULT_DRAIN_TIMEOUT_SECONDS = 10;
+    private static final int DEFAULT_THREADS = 10;
+    //端口、backlog和socket选项，按ServerConfig创建时用它的，否则都是默认值
+    private ServerConfig config = new ServerConfig(DEFAULT_PORT);
+    private int maxQueuedMessages = MAX_QUEUED_MESSAGES;
     private ExecutorService executorService;
+    //跑每个客户端的ClientWriter
+    private ExecutorService writerService;
     private ServerSocket serverSocket;
-    private HashMap<Integer, Writer> connectedClients;
+    private Map<Long, ClientSession> connectedClients;
+    //用户名 -> 会话，私聊一次查找
+    private Map<String, ClientSession> users;
+    //房间 -> 成员，转发只发给同房间的人
+    private RoomIndex<ClientSession> rooms = new RoomIndex<>();
+    private AtomicLong nextSessionId = new AtomicLong();
+    private ServerMetrics metrics = new ServerMetrics("bio");
+    //读线程很多，共用一份直方图
+    private Histogram fanOutLatency = metrics.fanOutLatency.newShard();
+    private Histogram queueDepth = metrics.queueDepth.newShard();
+    //纯文本统计的HTTP端口，0表示不开
+    private int statsPort;
+    //多久没有收发数据就断开，0表示不检测
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_SECONDS);
+    //每个客户端的限速，都为0表示不限；超限之后的处理
+    private double messagesPerSecond;
+    private int messageBurst;
+    private double bytesPerSecond;
+    private int byteBurst;
+    private FloodPolicy floodPolicy = FloodPolicy.DELAY;
+    //关闭时最多等多久把发送队列写完
+    private long drainTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_DRAIN_TIMEOUT_SECONDS);
+    //热重启交接，不为null时用SO_REUSEPORT绑定端口
+    private Handoff handoff;
+    //开始关闭之后不再接新连接
+    private volatile boolean draining;
 
     public ChatServer() {
-        executorService= Executors.newFixedThreadPool(10);
-        connectedClients = new HashMap<>();
+        this(false);
+    }
+
+    /**
+     * @param virtualThreads true则每个ChatHandler跑在自己的虚拟线程上，
+     *                       不再受线程池大小限制，阻塞读写只挂起虚拟线程
+     */
+    public ChatServer(boolean virtualThreads) {
+        this(virtualThreads, DEFAULT_THREADS);
+    }
+
+    /**
+     * 按配置创建，之后还可以用setter改；NIO专有的项（写合并、历史、压缩、集群等）忽略
+     */
+    @SuppressWarnings("this-escape")
+    public ChatServer(ServerConfig config) {
+        this(config.virtualThreads(), config.bioThreads());
+        this.config = config;
+        this.maxQueuedMessages = config.maxQueuedMessages();
+        setStatsPort(config.statsPort());
+        setIdleTimeoutSeconds(config.idleTimeoutSeconds());
+        setDrainTimeoutSeconds(config.drainTimeoutSeconds());
+        setRateLimit(config.messagesPerSecond(), config.messageBurst(), config.bytesPerSecond(), config.byteBurst());
+        setFloodPolicy(config.floodPolicy());
+        setHandoffFile(config.handoffFile());
+    }
+
+    private ChatServer(boolean virtualThreads, int threads) {
+        if (virtualThreads) {
+            executorService = Executors.newVirtualThreadPerTaskExecutor();
+            writerService = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            executorService = Executors.newFixedThreadPool(threads);
+            //发送线程跟着连接数走，不占读线程池
+            writerService = Executors.newCachedThreadPool();
+        }
+        connectedClients = new ConcurrentHashMap<>();
+        users = new ConcurrentHashMap<>();
     }
 
     //函数中的exception都在调用者里面处理
-    public synchronized void addClient(Socket socket) throws IOException {
-        if (socket != null) {
-            connectedClients.put(socket.getPort(), new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
-            System.out.println("客户端[" + socket.getPort() + "]已连接到服务器");
+    public ClientSession addClient(Socket socket) throws IOException {
+        socket.setTcpNoDelay(config.tcpNoDelay());
+        if (config.sendBufferSize() > 0) {
+            socket.setSendBufferSize(config.sendBufferSize());
         }
+        if (config.receiveBufferSize() > 0) {
+            socket.setReceiveBufferSize(config.receiveBufferSize());
+        }
+        ClientSession session = new ClientSession(nextSessionId.incrementAndGet(), socket, maxQueuedMessages, metrics);
+        metrics.connectionsOpened.increment();
+        connectedClients.put(session.id(), session);
+        users.put(session.nick(), session);
+        rooms.join(session.room(), session);
+        writerService.execute(session.writer());
+        AsyncLogger.info(session.name() + socket.getRemoteSocketAddress() + "已连接到服务器");
+        return session;
     }
 
-    public synchronized void removeClient(Socket socket) throws IOException {
-        if (socket != null) {
-            int port = socket.getPort();
-            if (connectedClients.containsKey(port)) {
-                connectedClients.get(port).close();
-            }
-            connectedClients.remove(port);
-            System.out.println("客户端[" + socket.getPort() + "]已断开连接");
+    public void removeClient(ClientSession session) {
+        if (connectedClients.remove(session.id()) != null) {
+            metrics.connectionsClosed.increment();
+            users.remove(session.nick(), session);
+            rooms.leave(session.room(), session);
+            session.writer().close();
         }
+        AsyncLogger.info(session.name() + "已断开连接");
     }
 
-    //转发
-    public synchronized void forwardMessage(Socket socket, String fwdMsg) throws IOException {
-        for (Integer integer : connectedClients.keySet()) {
-            if (!integer.equals(socket.getPort())) {
-                Writer writer = connectedClients.get(integer);
-                writer.write(fwdMsg);
-                writer.flush();
+    //转发给同房间的其他人，只入队不等待，不需要加锁
+    public void forwardMessage(ClientSession sender, String fwdMsg) {
+        long start = System.nanoTime();
+        for (ClientSession session : rooms.members(sender.room())) {
+            if (session != sender) {
+                metrics.messagesOut.increment();
+                queueDepth.record(session.writer().queuedMessages());
+                //关闭时发送线程已经在收尾，不算接收过慢
+                if (!session.writer().offer(fwdMsg) && !session.writer().isClosed()) {
+                    //队列满了说明这个客户端跟不上，只断开它自己
+                    AsyncLogger.info(session.name() + "接收过慢，断开连接");
+                    session.writer().abort();
+                }
             }
         }
+        fanOutLatency.record(System.nanoTime() - start);
     }
 
     //主逻辑，处理exception
     public void start() {
         try {
-            serverSocket = new ServerSocket(DEFAULT_PORT);
-            System.out.println("启动服务器，监听端口：[" + DEFAULT_PORT + "...");
+            serverSocket = new ServerSocket();
+            if (handoff != null || config.reusePort()) {
+                //老进程还在监听，新进程也能绑定同一个端口
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (config.receiveBufferSize() > 0) {
+                //accept出来的连接继承监听socket的接收缓冲，要在握手之前设置
+                serverSocket.setReceiveBufferSize(config.receiveBufferSize());
+            }
+            //默认的backlog只有50，连接一多accept队列满了会丢SYN
+            serverSocket.bind(new InetSocketAddress(config.port()), config.backlog());
+            if (handoff == null) {
+                metrics.start(statsPort);
+            } else {
+                //统计端口不能复用，老进程退出之后再绑定
+                handoff.takeOver().thenRun(() -> metrics.start(statsPort));
+            }
+            AsyncLogger.info("启动服务器，监听端口：[" + config.port() + "...");
             while (true) {
                 Socket socket = serverSocket.accept();
                 //创建ChatHandler线程
@@ -69,10 +193,214 @@ public class ChatServer {
                 executorService.execute(new ChatHandler(this,socket));
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            //shutdown关掉ServerSocket时accept会抛异常
+            if (!draining) {
+                e.printStackTrace();
+            }
         } finally {
-            close();
+            if (!draining) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * 优雅关闭，任何线程都可以调用（比如shutdown hook），排空之后才返回
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        //新进程等的就是这一步
+        if (handoff != null) {
+            handoff.release();
+        }
+        AsyncLogger.info("停止接受新连接，开始排空发送队列...");
+        List<ClientSession> sessions = new ArrayList<>(connectedClients.values());
+        for (ClientSession session : sessions) {
+            reply(session, "服务器正在关闭，请稍后重新连接");
+            try {
+                //读线程读到结尾退出，removeClient让发送线程写完队列再关socket
+                session.socket().shutdownInput();
+            } catch (IOException e) {
+                //已经断开了
+            }
+        }
+        executorService.shutdown();
+        writerService.shutdown();
+        try {
+            if (!writerService.awaitTermination(drainTimeoutNanos, TimeUnit.NANOSECONDS)) {
+                int dropped = 0;
+                for (ClientSession session : sessions) {
+                    if (session.writer().queuedMessages() > 0) {
+                        dropped++;
+                    }
+                    //已经写完的再abort一次没关系
+                    session.writer().abort();
+                }
+                AsyncLogger.info("排空超时，" + dropped + "个连接的消息没有发完");
+            }
+            executorService.awaitTermination(DEFAULT_DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        close();
+    }
+
+    //处理房间命令，结果只回复给发命令的人
+    public void handleCommand(ClientSession session, Command command) {
+        switch (command.type()) {
+            case JOIN:
+                if (command.argument().isEmpty()) {
+                    reply(session, "用法：/join 房间名");
+                } else {
+                    changeRoom(session, command.argument());
+                }
+                break;
+            case LEAVE:
+                changeRoom(session, RoomIndex.DEFAULT_ROOM);
+                break;
+            case ROOM:
+                reply(session, "当前房间[" + session.room() + "]，共" + rooms.size(session.room()) + "人");
+                break;
+            case NICK:
+                changeNick(session, command.argument());
+                break;
+            case DIRECT:
+                sendDirect(session, command.argument(), command.text());
+                break;
+            case HISTORY:
+                reply(session, "BIO服务器不保存历史消息");
+                break;
+            case PING:
+                reply(session, Command.PONG);
+                break;
+            case PONG:
+                //读线程已经更新了活跃时间
+                break;
+            case COMPRESS:
+                //按行的文本协议没有帧头，放不下压缩标志
+                reply(session, "BIO服务器不支持压缩");
+                break;
+        }
+    }
+
+    private void changeNick(ClientSession session, String nick) {
+        if (!Command.isValidNick(nick)) {
+            reply(session, "用法：/nick 名字（不能有空格，不能全是数字）");
+            return;
+        }
+        //先占新名字再放旧名字，两个人同时抢一个名字只有一个成功
+        if (users.putIfAbsent(nick, session) != null) {
+            reply(session, "用户名[" + nick + "]已被占用");
+            return;
+        }
+        users.remove(session.nick(), session);
+        session.setNick(nick);
+        reply(session, "用户名已改为[" + nick + "]");
+    }
+
+    //私聊：一次查找，一次入队
+    private void sendDirect(ClientSession sender, String nick, String text) {
+        if (text.isEmpty()) {
+            reply(sender, "用法：@用户名 内容");
+            return;
+        }
+        //不合法的名字不会有人用，也不能原样放进回复里
+        if (!Command.isValidName(nick)) {
+            reply(sender, "用法：@用户名 内容");
+            return;
+        }
+        ClientSession target = users.get(nick);
+        if (target == null) {
+            reply(sender, "用户[" + nick + "]不在线");
+            return;
+        }
+        if (!target.writer().offer(sender.name() + "私聊:" + text + "\n") && !target.writer().isClosed()) {
+            AsyncLogger.info(target.name() + "接收过慢，断开连接");
+            target.writer().abort();
+        }
+    }
+
+    //每个会话只有自己的读线程会换房间
+    private void changeRoom(ClientSession session, String room) {
+        rooms.leave(session.room(), session);
+        session.setRoom(room);
+        rooms.join(room, session);
+        reply(session, "已加入房间[" + room + "]");
+    }
+
+    private void reply(ClientSession session, String msg) {
+        session.writer().offer(msg + "\n");
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
+
+    public long idleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public void setDrainTimeoutSeconds(int drainTimeoutSeconds) {
+        this.drainTimeoutNanos = TimeUnit.SECONDS.toNanos(drainTimeoutSeconds);
+    }
+
+    /**
+     * 热重启：用SO_REUSEPORT绑定端口，按pid文件接管老进程，为null表示不交接
+     */
+    public void setHandoffFile(Path pidFile) {
+        this.handoff = pidFile == null ? null : new Handoff(pidFile);
+    }
+
+    public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    }
+
+    /**
+     * 每个客户端每秒最多发多少条消息、多少字节，burst是允许的突发量，0表示不限
+     */
+    public void setRateLimit(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.messageBurst = messageBurst;
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteBurst = byteBurst;
+    }
+
+    public void setFloodPolicy(FloodPolicy floodPolicy) {
+        this.floodPolicy = floodPolicy;
+    }
+
+    public FloodPolicy floodPolicy() {
+        return floodPolicy;
+    }
+
+    /**
+     * 每个读线程一个，没配置限速时返回null
+     */
+    public RateLimiter newRateLimiter() {
+        if (messagesPerSecond <= 0 && bytesPerSecond <= 0) {
+            return null;
         }
+        return new RateLimiter(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst, metrics);
     }
 
     public boolean readyToQuit(String msg) {
@@ -81,18 +409,39 @@ public class ChatServer {
     }
 
     public synchronized void close() {
+        metrics.stop();
         if (serverSocket != null) {
             try {
                 serverSocket.close();
-                System.out.println("已关闭ServeSocket");
+                AsyncLogger.info("已关闭ServeSocket");
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        if (handoff != null) {
+            handoff.release();
+        }
     }
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer();
+        //第一个参数传virtual使用虚拟线程模式，第二个参数是纯文本统计的端口；
+        //其他的用--key=value或者--config=文件，热重启用--handoffFile=pid文件
+        if (args.length > 0 && !args[0].startsWith("--")) {
+            args = args.clone();
+            args[0] = "--virtualThreads=" + "virtual".equals(args[0]);
+        }
+        ChatServer chatServer;
+        try {
+            chatServer = new ChatServer(ServerConfig.parse(args, 8888, "statsPort"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("配置有误：" + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.err.println("读取配置文件失败：" + e);
+            return;
+        }
+        //kill或者Ctrl+C时先排空再退出
+        Runtime.getRuntime().addShutdownHook(new Thread(chatServer::shutdown, "shutdown"));
         chatServer.start();
     }
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package BIO.server;
+
+import common.RoomIndex;
+import common.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * 一个客户端会话，连接建立时创建
+ * 用服务器分配的唯一id标识，不再用远端端口（不同主机的端口可能相同）
+ * 用户名默认是id，可以用/nick修改，私聊按用户名查找
+ */
+public class ClientSession {
+    private final long id;
+    private final Socket socket;
+    private final ClientWriter writer;
+    private volatile String nick;
+    private volatile String name;
+    //当前所在房间，读线程修改，转发时读取
+    private volatile String room = RoomIndex.DEFAULT_ROOM;
+
+    public ClientSession(long id, Socket socket, int maxQueuedMessages, ServerMetrics metrics) throws IOException {
+        this.id = id;
+        this.socket = socket;
+        //构造器里不调用可以被覆盖的setNick
+        this.nick = String.valueOf(id);
+        this.name = displayName(nick);
+        this.writer = new ClientWriter(socket, maxQueuedMessages, metrics);
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public Socket socket() {
+        return socket;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String nick() {
+        return nick;
+    }
+
+    public void setNick(String nick) {
+        this.nick = nick;
+        this.name = displayName(nick);
+    }
+
+    private static String displayName(String nick) {
+        return "客户端[" + nick + "]";
+    }
+
+    public ClientWriter writer() {
+        return writer;
+    }
+
+    public String room() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+}
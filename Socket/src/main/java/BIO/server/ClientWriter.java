@@ -0,0 +1,104 @@
+package BIO.server;
+
+import common.metrics.ServerMetrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 每个客户端一个发送队列，由这个客户端自己的发送线程写出
+ * 转发只是入队，客户端接收慢只会堆满它自己的队列
+ */
+public class ClientWriter implements Runnable {
+    //结束标记，只按引用比较
+    private static final String CLOSE = new String("close");
+
+    private final Socket socket;
+    private final Writer writer;
+    private final BlockingQueue<String> queue;
+    private final ServerMetrics metrics;
+    private volatile boolean closed;
+
+    public ClientWriter(Socket socket, int capacity, ServerMetrics metrics) throws IOException {
+        this.socket = socket;
+        this.writer = new BufferedWriter(new OutputStreamWriter(metrics.countBytesOut(socket.getOutputStream())));
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.metrics = metrics;
+    }
+
+    /**
+     * 不阻塞
+     * @return false表示队列已满或者已关闭
+     */
+    public boolean offer(String msg) {
+        return !closed && queue.offer(msg);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int queuedMessages() {
+        return queue.size();
+    }
+
+    /**
+     * 写完已经入队的消息再关闭
+     */
+    public void close() {
+        closed = true;
+        if (!queue.offer(CLOSE)) {
+            abort();
+        }
+    }
+
+    /**
+     * 丢掉队列直接断开，读线程会因为socket关闭而退出
+     */
+    public void abort() {
+        closed = true;
+        queue.clear();
+        queue.offer(CLOSE);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            String msg;
+            while ((msg = queue.take()) != CLOSE) {
+                writer.write(msg);
+                //队列里攒下的一起写，最后flush一次
+                while ((msg = queue.poll()) != null && msg != CLOSE) {
+                    writer.write(msg);
+                }
+                writer.flush();
+                metrics.writeCalls.increment();
+                if (msg == CLOSE) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            //对端已经断开
+            queue.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package BIO.server;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * 按行读，和BufferedReader.readLine一样认\n、\r和\r\n，返回的行不带行尾
+ * BufferedReader读超时的时候已经读到的半行会丢，这里半行留在line里，下次readLine接着拼
+ * InputStreamReader超时之前解出来的字符已经交出来了，半个多字节字符留在它的字节缓冲里，不会丢
+ */
+class LineReader {
+    private final Reader reader;
+    private final char[] buffer = new char[8192];
+    private int position;
+    private int limit;
+    //还没读到行尾的部分
+    private final StringBuilder line = new StringBuilder();
+    //上一行以\r结尾，紧跟着的\n属于上一行
+    private boolean skipLF;
+    //最后一次读到字符的时间，只读到半行也说明对端还活着
+    private long lastReadAt = System.nanoTime();
+
+    LineReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    long lastReadAt() {
+        return lastReadAt;
+    }
+
+    /**
+     * @return 对端关闭时返回null，关闭之前没有行尾的最后半行也算一行
+     * @throws java.net.SocketTimeoutException 读超时，已经读到的半行留着，可以接着调用
+     */
+    String readLine() throws IOException {
+        while (true) {
+            if (skipLF && position < limit) {
+                skipLF = false;
+                if (buffer[position] == '\n') {
+                    position++;
+                }
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n' && buffer[position] != '\r') {
+                position++;
+            }
+            line.append(buffer, start, position - start);
+            if (position < limit) {
+                skipLF = buffer[position++] == '\r';
+                String result = line.toString();
+                line.setLength(0);
+                return result;
+            }
+            //超时的话异常直接抛出去，line和skipLF都不动
+            int n = reader.read(buffer);
+            if (n < 0) {
+                if (line.length() == 0) {
+                    return null;
+                }
+                String result = line.toString();
+                line.setLength(0);
+                return result;
+            }
+            position = 0;
+            limit = n;
+            lastReadAt = System.nanoTime();
+        }
+    }
+}
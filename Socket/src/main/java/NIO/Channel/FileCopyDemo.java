@@ -3,168 +3,203 @@ package NIO.Channel;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Random;
 
-interface FileCopyRunner {
-    void copyFile(File source, File target);
-}
-
+/**
+ * 四种文件拷贝方式的对比
+ * main只是粗略演示，可靠的数据用jmh profile里的FileCopyBenchmark跑
+ */
 public class FileCopyDemo {
     private static final int ROUNDS=20;
+    //不指定文件时生成一个这么大的临时文件
+    private static final int DEFAULT_FILE_SIZE=1024*1024;
 
-    private static void benchmark(FileCopyRunner test,File source,File target){
-        long elapsed=0L;
-        for (int i = 0; i < ROUNDS; i++) {
-            long startTime=System.currentTimeMillis();
-            test.copyFile(source,target);
-            elapsed+=System.currentTimeMillis()-startTime;
-            target.delete();
-        }
-        System.out.println(test+":"+elapsed/ROUNDS);
-    }
-
-    private static void close(Closeable closeable) {
-        if (closeable != null) {
+    static final FileCopyRunner noBufferStreamCopy = new FileCopyRunner() {
+        @Override
+        public void copyFile(File source, File target) {
+            InputStream fin = null;
+            OutputStream fout = null;
             try {
-                closeable.close();
+                fin = new FileInputStream(source);
+                fout = new FileOutputStream(target);
+                //返回值是：下一个byte或者-1（结尾）
+                int result;
+                while ((result = fin.read()) != -1) {
+                    fout.write(result);
+                }
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                close(fin);
+                close(fout);
             }
         }
-    }
 
-    public static void main(String[] args) {
-        FileCopyRunner noBufferStreamCopy = new FileCopyRunner() {
-            @Override
-            public void copyFile(File source, File target) {
-                InputStream fin = null;
-                OutputStream fout = null;
-                try {
-                    fin = new FileInputStream(source);
-                    fout = new FileOutputStream(target);
-                    //返回值是：下一个byte或者-1（结尾）
-                    int result;
-                    while ((result = fin.read()) != -1) {
-                        fout.write(result);
-                    }
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    close(fin);
-                    close(fout);
-                }
-            }
+        @Override
+        public String toString() {
+            return "noBufferStreamCopy";
+        }
+    };
 
-            @Override
-            public String toString() {
-                return "noBufferStreamCopy";
-            }
-        };
-        FileCopyRunner bufferedStreamCopy = new FileCopyRunner() {
-            @Override
-            public void copyFile(File source, File target) {
-                InputStream fin = null;
-                OutputStream fout = null;
-                try {
-                    fin = new BufferedInputStream(new FileInputStream(source));
-                    fout = new BufferedOutputStream(new FileOutputStream(target));
-                    //设置缓冲区
-                    byte[] buffer = new byte[1024];
-                    int result;
-                    //返回读取字节数
+    static final FileCopyRunner bufferedStreamCopy = new FileCopyRunner() {
+        @Override
+        public void copyFile(File source, File target) {
+            InputStream fin = null;
+            OutputStream fout = null;
+            try {
+                fin = new BufferedInputStream(new FileInputStream(source));
+                fout = new BufferedOutputStream(new FileOutputStream(target));
+                //设置缓冲区
+                byte[] buffer = new byte[1024];
+                int result;
+                //返回读取字节数
 
-                    while ((result = fin.read(buffer)) != -1) {
-                        fout.write(buffer, 0, result);
-                    }
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    close(fin);
-                    close(fout);
+                while ((result = fin.read(buffer)) != -1) {
+                    fout.write(buffer, 0, result);
                 }
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                close(fin);
+                close(fout);
             }
-            @Override
-            public String toString() {
-                return "bufferedStreamCopy";
-            }
-        };
-        /**
-         * 通道
-         * 一个文件对应一个通道
-         */
-        FileCopyRunner nioBufferCopy = new FileCopyRunner() {
-            @Override
-            public void copyFile(File source, File target) {
-                FileChannel fin = null;
-                FileChannel fout = null;
-                try {
-                    fin = new FileInputStream(source).getChannel();
-                    fout = new FileOutputStream(target).getChannel();
-                    //缓冲区（把不能确定格式的文件当做二进制文件读取）
-                    //能确定的话可以用xxBuffer
-                    ByteBuffer buffer = ByteBuffer.allocate(1024);
-                    while ((fin.read(buffer)) != -1) {
-                        buffer.flip();
-                        while (buffer.hasRemaining()) {
-                            fout.write(buffer);
-                        }
-                        buffer.clear();
+        }
+        @Override
+        public String toString() {
+            return "bufferedStreamCopy";
+        }
+    };
+
+    /**
+     * 通道
+     * 一个文件对应一个通道
+     */
+    static final FileCopyRunner nioBufferCopy = new FileCopyRunner() {
+        @Override
+        public void copyFile(File source, File target) {
+            FileChannel fin = null;
+            FileChannel fout = null;
+            try {
+                fin = new FileInputStream(source).getChannel();
+                fout = new FileOutputStream(target).getChannel();
+                //缓冲区（把不能确定格式的文件当做二进制文件读取）
+                //能确定的话可以用xxBuffer
+                ByteBuffer buffer = ByteBuffer.allocate(1024);
+                while ((fin.read(buffer)) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        fout.write(buffer);
                     }
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                } finally {
-                    close(fin);
-                    close(fout);
+                    buffer.clear();
                 }
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                close(fin);
+                close(fout);
             }
-            @Override
-            public String toString() {
-                return "nioBufferCopy";
-            }
-        };
-        /**
-         * 用通道间传输
-         */
-        FileCopyRunner nioTransferCopy = new FileCopyRunner() {
-            @Override
-            public void copyFile(File source, File target) {
-                FileChannel fin=null;
-                FileChannel fout=null;
-                try {
-                    fin=new FileInputStream(source).getChannel();
-                    fout=new FileOutputStream(target).getChannel();
-                    long transferred=0L;
-                    long size=fin.size();
-                    while (transferred!=size) {
-                         transferred+= fin.transferTo(0, size, fout);
-                    }
-                } catch (FileNotFoundException e) {
-                    e.printStackTrace();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }finally {
-                    close(fin);
-                    close(fout);
+        }
+        @Override
+        public String toString() {
+            return "nioBufferCopy";
+        }
+    };
+
+    /**
+     * 用通道间传输
+     */
+    static final FileCopyRunner nioTransferCopy = new FileCopyRunner() {
+        @Override
+        public void copyFile(File source, File target) {
+            FileChannel fin=null;
+            FileChannel fout=null;
+            try {
+                fin=new FileInputStream(source).getChannel();
+                fout=new FileOutputStream(target).getChannel();
+                long transferred=0L;
+                long size=fin.size();
+                while (transferred!=size) {
+                    //一次不一定传完，从上次停下的地方继续
+                    transferred+= fin.transferTo(transferred, size-transferred, fout);
                 }
+            } catch (FileNotFoundException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }finally {
+                close(fin);
+                close(fout);
             }
-            @Override
-            public String toString() {
-                return "nioTransferCopy";
+        }
+        @Override
+        public String toString() {
+            return "nioTransferCopy";
+        }
+    };
+
+    static final FileCopyRunner[] RUNNERS = {
+            noBufferStreamCopy, bufferedStreamCopy, nioBufferCopy, nioTransferCopy
+    };
+
+    static FileCopyRunner runner(String name) {
+        for (FileCopyRunner runner : RUNNERS) {
+            if (runner.toString().equals(name)) {
+                return runner;
             }
-        };
-        File smallFile=new File("C:\\Users\\dsw\\Desktop\\45.jpg");
-        File smallFileCopy=new File("C:\\Users\\dsw\\Desktop\\45copy.jpg");
-        System.out.println("------Copying small file------");
-//        benchmark(noBufferStreamCopy,smallFile,smallFileCopy);
-        benchmark(bufferedStreamCopy,smallFile,smallFileCopy);
-        benchmark(nioBufferCopy,smallFile,smallFileCopy);
-        benchmark(nioTransferCopy,smallFile,smallFileCopy);
+        }
+        throw new IllegalArgumentException("没有这种拷贝方式：" + name);
+    }
+
+    /**
+     * 生成一个随机内容的临时文件
+     */
+    static File createTempFile(int size) throws IOException {
+        File file = Files.createTempFile("copy-source", ".bin").toFile();
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static void benchmark(FileCopyRunner test,File source,File target){
+        long elapsed=0L;
+        for (int i = 0; i < ROUNDS; i++) {
+            long startTime=System.nanoTime();
+            test.copyFile(source,target);
+            elapsed+=System.nanoTime()-startTime;
+            target.delete();
+        }
+        System.out.println(test+":"+elapsed/ROUNDS/1000+"us");
+    }
 
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
+    //参数：源文件路径，不传就生成一个1MB的临时文件
+    public static void main(String[] args) throws IOException {
+        File source = args.length > 0 ? new File(args[0]) : createTempFile(DEFAULT_FILE_SIZE);
+        File target = Files.createTempFile("copy-target", ".bin").toFile();
+        System.out.println("------Copying "+source+"（"+source.length()+"字节）------");
+//        benchmark(noBufferStreamCopy,source,target);
+        benchmark(bufferedStreamCopy,source,target);
+        benchmark(nioBufferCopy,source,target);
+        benchmark(nioTransferCopy,source,target);
+        if (args.length == 0) {
+            source.delete();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,8 @@
+package NIO.Channel;
+
+import java.io.File;
+
+//四种拷贝方式，FileCopyDemo和基准测试共用
+interface FileCopyRunner {
+    void copyFile(File source, File target);
+}
@@ -0,0 +1,195 @@
+package NIO.buffer;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按大小分级的堆外ByteBuffer池
+ * 256B到128KB每级翻倍，申请时向上取到所在级别，超过最大级别的直接分配不入池；
+ * 每级空闲队列按字节数封顶。抽样给分配打标记，
+ * 被GC时还没release就记一次泄漏并打印分配位置
+ */
+public class BufferPool {
+    private static final int MIN_SIZE = 256;
+    private static final int MAX_SIZE = 128 * 1024;
+    private static final int DEFAULT_MAX_POOLED_BYTES_PER_CLASS = 4 * 1024 * 1024;
+    private static final int DEFAULT_LEAK_SAMPLE_INTERVAL = 128;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Queue<ByteBuffer>[] free;
+    private final AtomicInteger[] freeCount;
+    private final int[] maxFreePerClass;
+    //每多少次分配抽一次查泄漏，0表示不查
+    private volatile int leakSampleInterval = DEFAULT_LEAK_SAMPLE_INTERVAL;
+    private final AtomicLong allocationSeq = new AtomicLong();
+
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder releases = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    public BufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES_PER_CLASS);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int maxPooledBytesPerClass) {
+        int classes = sizeClass(MAX_SIZE) + 1;
+        free = new Queue[classes];
+        freeCount = new AtomicInteger[classes];
+        maxFreePerClass = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+            maxFreePerClass[i] = Math.max(1, maxPooledBytesPerClass / classSize(i));
+        }
+    }
+
+    /**
+     * @return position为0、limit为capacity的buffer，用完必须release
+     */
+    public PooledBuffer allocate(int capacity) {
+        allocations.increment();
+        ByteBuffer buffer;
+        if (capacity > MAX_SIZE) {
+            unpooled.increment();
+            buffer = ByteBuffer.allocateDirect(capacity);
+        } else {
+            int sizeClass = sizeClass(capacity);
+            buffer = free[sizeClass].poll();
+            if (buffer != null) {
+                freeCount[sizeClass].decrementAndGet();
+                hits.increment();
+                buffer.clear();
+            } else {
+                misses.increment();
+                buffer = ByteBuffer.allocateDirect(classSize(sizeClass));
+            }
+            buffer.limit(capacity);
+        }
+        return new PooledBuffer(this, buffer, trackLeak(capacity));
+    }
+
+    //引用计数归零时由PooledBuffer调用
+    void recycle(ByteBuffer buffer) {
+        releases.increment();
+        int capacity = buffer.capacity();
+        if (capacity > MAX_SIZE) {
+            return;
+        }
+        int sizeClass = sizeClass(capacity);
+        if (freeCount[sizeClass].incrementAndGet() <= maxFreePerClass[sizeClass]) {
+            free[sizeClass].offer(buffer);
+        } else {
+            //池满了交给GC
+            freeCount[sizeClass].decrementAndGet();
+        }
+    }
+
+    private LeakTracker trackLeak(int capacity) {
+        int interval = leakSampleInterval;
+        if (interval <= 0 || allocationSeq.incrementAndGet() % interval != 0) {
+            return null;
+        }
+        return new LeakTracker(this, capacity);
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        //向上取2的幂再换算成级别
+        int bits = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return bits - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    private static int classSize(int sizeClass) {
+        return MIN_SIZE << sizeClass;
+    }
+
+    public void setLeakSampleInterval(int leakSampleInterval) {
+        this.leakSampleInterval = leakSampleInterval;
+    }
+
+    public long allocations() {
+        return allocations.sum();
+    }
+
+    //分配了还没release的数量
+    public long outstanding() {
+        return allocations.sum() - releases.sum();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long unpooled() {
+        return unpooled.sum();
+    }
+
+    public long leaks() {
+        return leaks.sum();
+    }
+
+    //池里空闲的字节数
+    public long pooledBytes() {
+        long bytes = 0;
+        for (int i = 0; i < freeCount.length; i++) {
+            bytes += (long) freeCount[i].get() * classSize(i);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{allocations=" + allocations() + ", outstanding=" + outstanding()
+                + ", hits=" + hits() + ", misses=" + misses() + ", unpooled=" + unpooled()
+                + ", leaks=" + leaks() + ", pooledBytes=" + pooledBytes() + "}";
+    }
+
+    /**
+     * 抽样分配的泄漏标记，注册到Cleaner上
+     * 不能引用PooledBuffer本身，否则永远不会被回收
+     */
+    static class LeakTracker implements Runnable {
+        private final BufferPool pool;
+        private final Throwable allocatedAt;
+        private volatile boolean released;
+        private Cleaner.Cleanable cleanable;
+
+        LeakTracker(BufferPool pool, int capacity) {
+            this.pool = pool;
+            this.allocatedAt = new Throwable("分配了" + capacity + "字节");
+        }
+
+        void register(Object owner) {
+            cleanable = CLEANER.register(owner, this);
+        }
+
+        void close() {
+            released = true;
+            cleanable.clean();
+        }
+
+        @Override
+        public void run() {
+            if (!released) {
+                pool.leaks.increment();
+                System.err.println("ByteBuffer泄漏：被GC前没有release");
+                allocatedAt.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package NIO.buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 发送一个文件：先写文件帧头，再用transferTo把文件内容直接从文件写到socket，
+ * 不经过堆内存。每次最多写一块，大文件不会一直占着selector线程
+ */
+public class FileRegion implements Outbound {
+    private static final long CHUNK = 256 * 1024;
+
+    private final PooledBuffer header;
+    private final SharedFile file;
+    private long position;
+
+    /**
+     * @param header 文件帧头，交给FileRegion负责release
+     * @param file 引用计数加一
+     */
+    public FileRegion(PooledBuffer header, SharedFile file) {
+        this.header = header;
+        this.file = file.retain();
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        long written = 0;
+        if (header.buffer().hasRemaining()) {
+            written = channel.write(header.buffer());
+            if (header.buffer().hasRemaining()) {
+                return written;
+            }
+        }
+        long count = Math.min(file.size - position, CHUNK);
+        long transferred = file.channel.transferTo(position, count, channel);
+        position += transferred;
+        return written + transferred;
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return header.buffer().hasRemaining() || position < file.size;
+    }
+
+    //要用transferTo写，不参与合并
+    @Override
+    public ByteBuffer nioBuffer() {
+        return null;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return header.buffer().position() > 0;
+    }
+
+    @Override
+    public FileRegion retainedDuplicate() {
+        return new FileRegion(header.retainedDuplicate(), file);
+    }
+
+    @Override
+    public void release() {
+        header.release();
+        file.release();
+    }
+
+    /**
+     * 多个接收者共用的文件，最后一个release时关闭并删除
+     */
+    public static class SharedFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final long size;
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+
+        public SharedFile(Path path) throws IOException {
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = channel.size();
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public SharedFile retain() {
+            refCnt.incrementAndGet();
+            return this;
+        }
+
+        public void release() {
+            if (refCnt.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(path);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package NIO.buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 发送队列里的一项：一帧消息或者一段文件
+ */
+public interface Outbound {
+    /**
+     * 尽量写一部分
+     * @return 这次写出的字节数
+     */
+    long writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * 是否还有没写完的，文件每次只写一块，写完一块也可能还有剩余
+     */
+    boolean hasRemaining();
+
+    /**
+     * 能和相邻的项合并成一次gathering write的，返回要写的ByteBuffer；文件之类的返回null
+     */
+    ByteBuffer nioBuffer();
+
+    /**
+     * 是否已经写出过一部分，写了一半的不能丢
+     */
+    boolean isStarted();
+
+    /**
+     * 共享底层数据、从头开始写的副本，引用计数加一，副本也要单独release
+     */
+    Outbound retainedDuplicate();
+
+    void release();
+}
@@ -0,0 +1,89 @@
+package NIO.buffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从BufferPool借来的buffer，带引用计数
+ * 广播时每个接收者拿一个retainedDuplicate，各自有独立的position，
+ * 最后一个release的把底层buffer还回池里
+ */
+public class PooledBuffer implements Outbound {
+    private final Shared shared;
+    private final ByteBuffer buffer;
+
+    PooledBuffer(BufferPool pool, ByteBuffer buffer, BufferPool.LeakTracker tracker) {
+        this.shared = new Shared(pool, buffer, tracker);
+        this.buffer = buffer;
+        if (tracker != null) {
+            tracker.register(shared);
+        }
+    }
+
+    private PooledBuffer(Shared shared, ByteBuffer buffer) {
+        this.shared = shared;
+        this.buffer = buffer;
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        return channel.write(buffer);
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    @Override
+    public ByteBuffer nioBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return buffer.position() > 0;
+    }
+
+    /**
+     * 共享同一块内存的只读视图，引用计数加一，视图也要单独release
+     */
+    @Override
+    public PooledBuffer retainedDuplicate() {
+        shared.refCnt.incrementAndGet();
+        return new PooledBuffer(shared, buffer.asReadOnlyBuffer());
+    }
+
+    @Override
+    public void release() {
+        int refCnt = shared.refCnt.decrementAndGet();
+        if (refCnt == 0) {
+            if (shared.tracker != null) {
+                shared.tracker.close();
+            }
+            shared.pool.recycle(shared.buffer);
+        } else if (refCnt < 0) {
+            throw new IllegalStateException("重复release");
+        }
+    }
+
+    //所有视图共用的部分，泄漏检测挂在它上面
+    private static class Shared {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final BufferPool.LeakTracker tracker;
+        private final AtomicInteger refCnt = new AtomicInteger(1);
+
+        Shared(BufferPool pool, ByteBuffer buffer, BufferPool.LeakTracker tracker) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.tracker = tracker;
+        }
+    }
+}
@@ -1,32 +1,77 @@
 package NIO.client;
 
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+import NIO.codec.FileHeader;
+import NIO.codec.FrameCompressor;
+import NIO.codec.FrameDecoder;
+import NIO.codec.FrameEncoder;
+import NIO.codec.TextDecoder;
+import common.Command;
+
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 
 /**
  * 和服务器建立连接，
  * 并将从服务接受的信息打印出来
+ * /send 文件路径：用transferTo把文件直接发给服务器，收到的文件存进downloads目录
+ * 连上之后发/compress开启压缩，服务器发来的压缩帧由FrameDecoder解开，自己发的长消息也压缩之后再发
  */
 public class ChatClient {
     private static final String DEFAULT_SERVER_HOST = "127.0.0.1";
     private static final int DEFAULT_SERVER_PORT = 8888;
     private static final String QUIT = "quit";
     private static final int BUFFER=1024;
+    private static final String SEND_FILE = "/send ";
+    //一次gathering write最多合并几条
+    private static final int MAX_BATCH = 64;
+    private static final Path DOWNLOAD_DIR = Paths.get("downloads");
+    //超过这么多字节的消息压缩之后发
+    private static final int COMPRESSION_THRESHOLD = 1024;
     private String host;
     private int port;
     private SocketChannel client;
-    private ByteBuffer rBuffer = ByteBuffer.allocate(BUFFER);
-    private ByteBuffer wBuffer = ByteBuffer.allocate(BUFFER);
     private Selector selector;
+    //发文件时输入线程在这里等发送缓冲腾出空间，和selector注册的是同一个channel
+    private Selector writeSelector;
     private Charset charset=Charset.forName("UTF-8");
+    //读缓冲、半包、发送的帧都用池化的堆外buffer
+    private BufferPool bufferPool = new BufferPool();
+    private PooledBuffer rBuffer = bufferPool.allocate(BUFFER);
+    //和服务端共用的帧编解码
+    private FrameEncoder encoder = new FrameEncoder(charset, bufferPool);
+    private FrameDecoder decoder = new FrameDecoder(bufferPool);
+    //只在输入线程的sendBuffered里用
+    private FrameCompressor compressor = new FrameCompressor(bufferPool);
+    private TextDecoder textDecoder = new TextDecoder(charset);
+    private List<ByteBuffer> frames = new ArrayList<>();
+    //输入线程攒着还没写的帧，flush时一次写出
+    private List<PooledBuffer> pending = new ArrayList<>();
+    private ByteBuffer[] gather = new ByteBuffer[MAX_BATCH];
+    //输入线程正在发文件内容，期间selector线程要写的帧先存起来，发完再写，不会插进文件内容里
+    private boolean sendingFile;
+    private List<PooledBuffer> deferred = new ArrayList<>();
+    //正在接收的文件，没有时为null；文件名不合法时也是null，文件内容直接丢掉
+    private FileChannel download;
+    private String downloadName;
 
     public ChatClient() {
         this(DEFAULT_SERVER_PORT);
@@ -74,6 +119,12 @@ public class ChatClient {
         }finally {
             //selector关两次没事
             close(selector);
+            //输入线程可能正等在这里，关掉之后select会抛ClosedSelectorException
+            close(writeSelector);
+            close(download);
+            decoder.release();
+            compressor.end();
+            rBuffer.release();
         }
 
     }
@@ -85,6 +136,9 @@ public class ChatClient {
             if(client.isConnectionPending()){
                 //如果连接成功，就绪,正式建立连接
                 client.finishConnect();
+                writeSelector=Selector.open();
+                client.register(writeSelector,SelectionKey.OP_WRITE);
+                send(Command.COMPRESS);
                 //处理用户输入
                 new Thread(new UserInputHandler(this)).start();
             }
@@ -93,37 +147,257 @@ public class ChatClient {
         //read转发服务器消息
         else if(key.isReadable()){
             SocketChannel client= (SocketChannel) key.channel();
-            String msg=receive(client);
-            if(msg.isEmpty()){
+            List<String> messages=receive(client);
+            if(messages==null){
                 //服务器异常
                 close(selector);
             }else{
-                System.out.println(msg);
+                for (String msg : messages) {
+                    System.out.println(msg);
+                }
             }
         }
     }
 
     public void send(String msg) throws IOException {
+        sendBuffered(msg);
+        flush();
+    }
+
+    /**
+     * 只编码不写，攒到flush时一起写；攒满一批、发文件或者退出时会先写出去
+     */
+    public void sendBuffered(String msg) throws IOException {
         if(msg.isEmpty()){
             return;
         }
-        wBuffer.clear();
-        wBuffer.put(charset.encode(msg));
-        wBuffer.flip();
-        while(wBuffer.hasRemaining()){
-            client.write(wBuffer);
+        if(msg.startsWith(SEND_FILE)){
+            //前面的消息要先到
+            flush();
+            sendFile(Paths.get(msg.substring(SEND_FILE.length()).trim()));
+            return;
+        }
+        PooledBuffer frame;
+        try {
+            frame = encoder.encode(msg);
+        } catch (IllegalArgumentException e) {
+            //服务器会拒收超长的帧并断开
+            System.out.println("消息过长，没有发送");
+            return;
+        }
+        if(frame.buffer().remaining()>=COMPRESSION_THRESHOLD){
+            PooledBuffer compressed = compressor.compress(frame.buffer());
+            if(compressed!=null){
+                frame.release();
+                frame=compressed;
+            }
         }
+        pending.add(frame);
         //检查用户是否准备退出
         if(readyToQuit(msg)){
+            flush();
             close(selector);
+        }else if(pending.size()==MAX_BATCH){
+            flush();
+        }
+    }
+
+    /**
+     * 把攒着的帧用一次write(ByteBuffer[])写出去
+     */
+    public synchronized void flush() throws IOException {
+        int count = pending.size();
+        if(count==0){
+            return;
+        }
+        try {
+            for (int i = 0; i < count; i++) {
+                gather[i] = pending.get(i).buffer();
+            }
+            while(gather[count-1].hasRemaining()){
+                client.write(gather, 0, count);
+            }
+        } finally {
+            Arrays.fill(gather, 0, count, null);
+            for (PooledBuffer frame : pending) {
+                frame.release();
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * 文件帧头之后用transferTo把文件内容直接写进socket
+     * 发内容时不持有锁，selector线程照常收消息，要回的心跳先存着，发完再写
+     */
+    private void sendFile(Path path) throws IOException {
+        if(!Files.isRegularFile(path)){
+            System.out.println("文件不存在："+path);
+            return;
+        }
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            PooledBuffer header = encoder.encodeFileHeader(path.getFileName().toString(), size);
+            synchronized (this) {
+                write(header);
+                sendingFile = true;
+            }
+            try {
+                long position = 0;
+                while(position<size){
+                    long n = file.transferTo(position, size - position, client);
+                    if(n==0){
+                        //非阻塞socket，发送缓冲满了，等腾出空间再发
+                        writeSelector.select();
+                        writeSelector.selectedKeys().clear();
+                    }
+                    position += n;
+                }
+            } finally {
+                writeDeferred();
+            }
+        }
+    }
+
+    private synchronized void writeDeferred() throws IOException {
+        sendingFile = false;
+        try {
+            while(!deferred.isEmpty()){
+                write(deferred.remove(0));
+            }
+        } finally {
+            for (PooledBuffer frame : deferred) {
+                frame.release();
+            }
+            deferred.clear();
+        }
+    }
+
+    //输入线程发消息，selector线程回心跳，整帧写完才放开，帧不会交错
+    private synchronized void write(PooledBuffer frame) throws IOException {
+        if(sendingFile){
+            deferred.add(frame);
+            return;
+        }
+        try {
+            ByteBuffer wBuffer = frame.buffer();
+            while(wBuffer.hasRemaining()){
+                client.write(wBuffer);
+            }
+        } finally {
+            frame.release();
         }
     }
 
-    private String receive(SocketChannel client) throws IOException {
+    /**
+     * 读取并拆帧，正在接收文件且没有缓冲的字节时直接从socket收进文件
+     * @return 服务器关闭连接时返回null
+     */
+    private List<String> receive(SocketChannel client) throws IOException {
+        List<String> messages=new ArrayList<>();
+        if(download!=null&&decoder.inRaw()&&!decoder.hasBuffered()){
+            long position = download.position();
+            long n = download.transferFrom(client, position, decoder.rawRemaining());
+            download.position(position + n);
+            decoder.rawTransferred(n);
+            if(n>0){
+                if(!decoder.inRaw()){
+                    finishDownload(messages);
+                }
+                return messages;
+            }
+            //transferFrom分不清没数据和服务器关闭，下面read一次确认
+        }
+        ByteBuffer rBuffer = this.rBuffer.buffer();
+        int count;
         rBuffer.clear();
-        while(client.read(rBuffer)>0);
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+        while((count=client.read(rBuffer))>0){
+            rBuffer.flip();
+            process(rBuffer, messages);
+            if(download!=null&&decoder.inRaw()&&!decoder.hasBuffered()){
+                //剩下的文件内容下次直接收
+                break;
+            }
+            rBuffer.clear();
+        }
+        if(count<0){
+            return null;
+        }
+        return messages;
+    }
+
+    //先补完正在接收的文件，再拆帧，遇到文件帧就开始接收
+    private void process(ByteBuffer in, List<String> messages) throws IOException {
+        while (true) {
+            if(download!=null){
+                decoder.transferRaw(in, download);
+                if(decoder.inRaw()){
+                    return;
+                }
+                finishDownload(messages);
+            }else if(decoder.inRaw()){
+                //不收的文件，内容读出来丢掉
+                decoder.skipRaw(in);
+                if(decoder.inRaw()){
+                    return;
+                }
+            }
+            frames.clear();
+            decoder.decode(in,frames);
+            //帧是缓冲的视图，下次read之前转成字符串
+            for (ByteBuffer frame : frames) {
+                CharBuffer text = textDecoder.decode(frame);
+                if(Command.PING.contentEquals(text)){
+                    //服务器的心跳，不显示
+                    write(encoder.encode(Command.PONG));
+                }else{
+                    messages.add(text.toString());
+                }
+            }
+            frames.clear();
+            FileHeader header = decoder.takeFileHeader();
+            if(header==null){
+                decoder.discardReadBytes();
+                return;
+            }
+            startDownload(header);
+        }
+    }
+
+    //文件名不合法或者建不了文件时不收，内容由process丢掉，不影响后面的消息
+    private void startDownload(FileHeader header) {
+        Path path = downloadPath(header.name());
+        if(path==null){
+            System.out.println("收到的文件名不合法，已丢弃"+header.size()+"字节");
+            return;
+        }
+        try {
+            Files.createDirectories(DOWNLOAD_DIR);
+            download = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            downloadName = path.getFileName().toString();
+        } catch (IOException e) {
+            System.out.println("无法保存文件"+path+"："+e.getMessage());
+        }
+    }
+
+    //名字是别人发的，解析之后必须正好落在downloads目录下
+    private static Path downloadPath(String name) {
+        try {
+            Path path = DOWNLOAD_DIR.resolve(name).normalize();
+            if(DOWNLOAD_DIR.equals(path.getParent())){
+                return path;
+            }
+        } catch (InvalidPathException e) {
+            //按非法文件名处理
+        }
+        return null;
+    }
+
+    private void finishDownload(List<String> messages) throws IOException {
+        download.close();
+        download = null;
+        messages.add("已接收文件："+DOWNLOAD_DIR.resolve(downloadName));
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,483 @@
+package NIO.client;
+
+import NIO.buffer.BufferPool;
+import NIO.codec.FrameDecoder;
+import NIO.codec.FrameEncoder;
+import common.metrics.Histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 压测用的无界面客户端，几个selector线程驱动成千上万个连接
+ * 每个连接按固定速率发固定大小的消息，消息里带着计划发送的时间，
+ * 同一个房间的其他连接收到后算端到端延迟。用计划时间而不是实际发送时间，
+ * 服务器变慢导致发送推迟的那部分也算进延迟里
+ * 每秒打印一次发送/接收速率和延迟分位数，结束时打印预热之后的汇总
+ * frame协议对应NIO服务器（默认7777端口），line协议对应BIO服务器（8888端口），
+ * AIO服务器也是frame协议，加上--port=9999
+ *
+ * 参数都是--key=value，比如：
+ * --protocol=frame --port=7777 --clients=1000 --selectors=4 --rooms=10 --rate=1 --size=64 --duration=30 --warmup=5
+ */
+public class LoadGenerator {
+    //消息内容：标记 + 本次压测的id + 计划发送时间 + 填充，都是ASCII，不用走编码器
+    private static final byte MARK = 'L';
+    private static final int WRITE_BUFFER = 16 * 1024;
+    private static final int READ_BUFFER = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final boolean frameProtocol;
+    private final int clientCount;
+    private final int selectorCount;
+    private final int rooms;
+    private final double rate;
+    private final int size;
+    private final int duration;
+    private final int warmup;
+    private final int connectRate;
+    //区分本次压测的消息和服务器回放的历史消息
+    private final long runId = System.nanoTime();
+
+    private final BufferPool bufferPool = new BufferPool();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    //发送缓冲满了没发出去的消息
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final Worker[] workers;
+    private volatile boolean sending = true;
+
+    public LoadGenerator(Map<String, String> options) throws IOException {
+        this.host = options.getOrDefault("host", "127.0.0.1");
+        this.frameProtocol = !"line".equals(options.getOrDefault("protocol", "frame"));
+        this.port = Integer.parseInt(options.getOrDefault("port", frameProtocol ? "7777" : "8888"));
+        this.clientCount = Integer.parseInt(options.getOrDefault("clients", "1000"));
+        this.selectorCount = Integer.parseInt(options.getOrDefault("selectors", "4"));
+        this.rooms = Integer.parseInt(options.getOrDefault("rooms", "10"));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "1"));
+        this.size = Integer.parseInt(options.getOrDefault("size", "64"));
+        this.duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+        this.warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        this.connectRate = Integer.parseInt(options.getOrDefault("connectRate", "2000"));
+        this.workers = new Worker[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            workers[i] = new Worker();
+        }
+    }
+
+    public void run() throws InterruptedException {
+        System.out.println("压测" + host + ":" + port + "，协议：" + (frameProtocol ? "frame" : "line")
+                + "，连接数：" + clientCount + "，selector：" + selectorCount + "，房间：" + rooms
+                + "，每个连接每秒" + rate + "条，每条" + size + "字节");
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < selectorCount; i++) {
+            Thread thread = new Thread(workers[i], "load-" + (i + 1));
+            thread.start();
+            threads.add(thread);
+        }
+        //按connectRate分批建连，避免一下子塞满服务器的accept队列
+        long start = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            long due = start + (long) (i * 1e9 / connectRate);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            workers[i % selectorCount].connect(new Client(i));
+        }
+
+        Histogram last = snapshot();
+        Histogram warmupEnd = null;
+        long lastSent = 0, lastReceived = 0;
+        long warmupSent = 0, warmupReceived = 0;
+        for (int second = 1; second <= warmup + duration; second++) {
+            TimeUnit.SECONDS.sleep(1);
+            Histogram now = snapshot();
+            Histogram interval = now.copy();
+            interval.subtract(last);
+            last = now;
+            long s = sent.sum(), r = received.sum();
+            System.out.printf("%s%3ds 连接%6d 发送%8d/s 接收%9d/s p50=%s p99=%s p999=%s max=%s%n",
+                    second <= warmup ? "预热" : "    ", second, connected.sum(), s - lastSent, r - lastReceived,
+                    micros(interval.percentile(50)), micros(interval.percentile(99)),
+                    micros(interval.percentile(99.9)), micros(interval.max()));
+            lastSent = s;
+            lastReceived = r;
+            if (second == warmup) {
+                warmupEnd = now;
+                warmupSent = s;
+                warmupReceived = r;
+            }
+        }
+        sending = false;
+        //等在途的消息收完
+        TimeUnit.SECONDS.sleep(1);
+        Histogram total = snapshot();
+        if (warmupEnd != null) {
+            total.subtract(warmupEnd);
+        }
+        long measuredSent = sent.sum() - warmupSent;
+        long measuredReceived = received.sum() - warmupReceived;
+        System.out.printf("汇总 %ds：发送%d条（%.0f/s），接收%d条（%.0f/s），发送缓冲满跳过%d条，错误%d次%n",
+                duration, measuredSent, (double) measuredSent / duration,
+                measuredReceived, (double) measuredReceived / duration, skipped.sum(), errors.sum());
+        System.out.printf("延迟 p50=%s p99=%s p999=%s max=%s mean=%s，流量 发送%dKB 接收%dKB%n",
+                micros(total.percentile(50)), micros(total.percentile(99)), micros(total.percentile(99.9)),
+                micros(total.max()), micros((long) total.mean()),
+                bytesSent.sum() / 1024, bytesReceived.sum() / 1024);
+        for (Worker worker : workers) {
+            worker.shutdown();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private Histogram snapshot() {
+        Histogram merged = new Histogram();
+        for (Worker worker : workers) {
+            merged.add(worker.latency);
+        }
+        return merged;
+    }
+
+    private static String micros(long nanos) {
+        if (nanos >= 10_000_000) {
+            return nanos / 1_000_000 + "ms";
+        }
+        return nanos / 1_000 + "us";
+    }
+
+    /**
+     * 一个selector线程，负责一部分连接的建连、定时发送和接收
+     */
+    private class Worker implements Runnable {
+        private final Selector selector;
+        //主线程交过来的新连接
+        private final Queue<Client> pending = new ConcurrentLinkedQueue<>();
+        //按下次发送时间排序
+        private final PriorityQueue<Client> schedule = new PriorityQueue<>(
+                (a, b) -> Long.compare(a.nextSend, b.nextSend));
+        private final List<Client> clients = new ArrayList<>();
+        private final ByteBuffer rBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+        private final List<ByteBuffer> frames = new ArrayList<>();
+        //每个线程自己的直方图，主线程定时合并
+        private final Histogram latency = new Histogram();
+        private volatile boolean running = true;
+
+        Worker() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void connect(Client client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    registerPending();
+                    long now = System.nanoTime();
+                    sendDue(now);
+                    Client next = schedule.peek();
+                    long timeout = next == null ? 0 : Math.max(1, (next.nextSend - now) / 1_000_000);
+                    if (next != null && next.nextSend <= System.nanoTime()) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(timeout);
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        handle(key);
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (Client client : clients) {
+                    client.close();
+                }
+                close(selector);
+            }
+        }
+
+        private void registerPending() {
+            Client client;
+            while ((client = pending.poll()) != null) {
+                try {
+                    client.channel = SocketChannel.open();
+                    client.channel.configureBlocking(false);
+                    client.channel.socket().setTcpNoDelay(true);
+                    client.channel.connect(new InetSocketAddress(host, port));
+                    client.key = client.channel.register(selector, SelectionKey.OP_CONNECT, client);
+                    clients.add(client);
+                } catch (IOException e) {
+                    errors.increment();
+                    client.close();
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Client client = (Client) key.attachment();
+            try {
+                if (key.isConnectable()) {
+                    client.channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    connected.increment();
+                    if (rooms > 0) {
+                        client.append(("/join load-" + client.id % rooms).getBytes(StandardCharsets.UTF_8));
+                    }
+                    //错开各个连接的发送时间
+                    client.nextSend = System.nanoTime() + (long) (Math.random() * client.interval);
+                    schedule.add(client);
+                    client.flush();
+                    return;
+                }
+                if (key.isWritable()) {
+                    client.flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read(client);
+                }
+            } catch (IOException e) {
+                errors.increment();
+                client.close();
+            }
+        }
+
+        private void sendDue(long now) {
+            Client client;
+            while ((client = schedule.peek()) != null && client.nextSend <= now) {
+                schedule.poll();
+                if (!client.channel.isOpen()) {
+                    continue;
+                }
+                if (sending) {
+                    try {
+                        client.sendLoad(client.nextSend);
+                    } catch (IOException e) {
+                        errors.increment();
+                        client.close();
+                        continue;
+                    }
+                }
+                client.nextSend += client.interval;
+                schedule.add(client);
+            }
+        }
+
+        private void read(Client client) throws IOException {
+            int count;
+            rBuffer.clear();
+            while ((count = client.channel.read(rBuffer)) > 0) {
+                bytesReceived.add(count);
+                rBuffer.flip();
+                if (frameProtocol) {
+                    frames.clear();
+                    client.decoder.decode(rBuffer, frames);
+                    for (ByteBuffer frame : frames) {
+                        onMessage(frame);
+                    }
+                    frames.clear();
+                    client.decoder.discardReadBytes();
+                } else {
+                    splitLines(client);
+                }
+                rBuffer.clear();
+            }
+            if (count < 0) {
+                errors.increment();
+                client.close();
+            }
+        }
+
+        //按换行拆，半行拷进连接自己的缓冲
+        private void splitLines(Client client) {
+            while (rBuffer.hasRemaining()) {
+                int end = -1;
+                for (int i = rBuffer.position(); i < rBuffer.limit(); i++) {
+                    if (rBuffer.get(i) == '\n') {
+                        end = i;
+                        break;
+                    }
+                }
+                if (end < 0) {
+                    client.partial(rBuffer);
+                    return;
+                }
+                ByteBuffer line = rBuffer.duplicate();
+                line.limit(end);
+                if (client.partial != null && client.partial.position() > 0) {
+                    client.partial(line);
+                    client.partial.flip();
+                    onMessage(client.partial);
+                    client.partial.clear();
+                } else {
+                    onMessage(line);
+                }
+                rBuffer.position(end + 1);
+            }
+        }
+
+        //格式：名字:L<runId>,<计划发送时间>,<填充>，只解析数字，不创建字符串
+        private void onMessage(ByteBuffer msg) {
+            int i = msg.position();
+            int limit = msg.limit();
+            //UTF-8多字节字符里不会出现':'
+            while (i < limit && msg.get(i) != ':') {
+                i++;
+            }
+            if (++i >= limit || msg.get(i) != MARK) {
+                //命令回复、历史消息之类
+                return;
+            }
+            long id = 0;
+            for (i++; i < limit && msg.get(i) != ','; i++) {
+                id = id * 10 + (msg.get(i) - '0');
+            }
+            if (id != runId) {
+                return;
+            }
+            long sentAt = 0;
+            for (i++; i < limit && msg.get(i) != ','; i++) {
+                sentAt = sentAt * 10 + (msg.get(i) - '0');
+            }
+            received.increment();
+            latency.record(System.nanoTime() - sentAt);
+        }
+    }
+
+    /**
+     * 一个模拟的客户端，只在所属Worker的线程里访问
+     */
+    private class Client {
+        private final int id;
+        private final long interval = (long) (1e9 / rate);
+        private final FrameDecoder decoder = frameProtocol ? new FrameDecoder(bufferPool) : null;
+        //写模式，攒着还没写出去的字节
+        private final ByteBuffer wBuffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER, size * 4));
+        //line协议的半行
+        private ByteBuffer partial;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private long nextSend;
+
+        Client(int id) {
+            this.id = id;
+        }
+
+        void sendLoad(long scheduledAt) throws IOException {
+            byte[] head = ("L" + runId + "," + scheduledAt + ",").getBytes(StandardCharsets.US_ASCII);
+            int length = Math.max(size, head.length);
+            if (wBuffer.remaining() < length + FrameEncoder.HEADER_LENGTH + 1) {
+                //上一批还没写出去，说明服务器读得比我们发得慢
+                skipped.increment();
+                return;
+            }
+            if (frameProtocol) {
+                wBuffer.putInt(length);
+            }
+            wBuffer.put(head);
+            for (int i = head.length; i < length; i++) {
+                wBuffer.put((byte) 'x');
+            }
+            if (!frameProtocol) {
+                wBuffer.put((byte) '\n');
+            }
+            sent.increment();
+            flush();
+        }
+
+        void append(byte[] msg) {
+            if (frameProtocol) {
+                wBuffer.putInt(msg.length);
+                wBuffer.put(msg);
+            } else {
+                wBuffer.put(msg);
+                wBuffer.put((byte) '\n');
+            }
+        }
+
+        void flush() throws IOException {
+            wBuffer.flip();
+            bytesSent.add(channel.write(wBuffer));
+            boolean done = !wBuffer.hasRemaining();
+            wBuffer.compact();
+            if (done) {
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void partial(ByteBuffer bytes) {
+            if (partial == null) {
+                partial = ByteBuffer.allocate(Math.max(1024, bytes.remaining()));
+            }
+            if (partial.remaining() < bytes.remaining()) {
+                ByteBuffer bigger = ByteBuffer.allocate((partial.position() + bytes.remaining()) * 2);
+                partial.flip();
+                bigger.put(partial);
+                partial = bigger;
+            }
+            partial.put(bytes);
+        }
+
+        void close() {
+            if (decoder != null) {
+                decoder.release();
+            }
+            LoadGenerator.close(channel);
+        }
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+                System.out.println("参数格式：--key=value，不认识：" + arg);
+                return;
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+}
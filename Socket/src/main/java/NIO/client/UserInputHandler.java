@@ -21,10 +21,14 @@ public class UserInputHandler implements Runnable {
         try {
             while (true) {
                 String input = consoleReader.readLine();
-                chatClient.send(input);
+                chatClient.sendBuffered(input);
                 if(chatClient.readyToQuit(input)){
                     break;
                 }
+                //一次粘贴了多行时先攒着，读完了再一起写
+                if(!consoleReader.ready()){
+                    chatClient.flush();
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,22 @@
+package NIO.codec;
+
+/**
+ * 文件帧的元数据，后面紧跟size个字节的文件内容
+ */
+public class FileHeader {
+    private final String name;
+    private final long size;
+
+    public FileHeader(String name, long size) {
+        this.name = name;
+        this.size = size;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public long size() {
+        return size;
+    }
+}
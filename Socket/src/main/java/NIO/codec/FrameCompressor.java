@@ -0,0 +1,74 @@
+package NIO.codec;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * 把一个或多个完整的帧压成一个压缩帧
+ * 压缩帧：长度最高第二位置1，内容是原来的帧（含长度头）连在一起deflate之后的字节
+ * 复用同一个Deflater，每次reset，不用每条消息都申请、释放一次zlib的native内存
+ * 不是线程安全的，每个reactor（客户端只有一个）一个实例，用完要end
+ */
+public class FrameCompressor {
+    //历史回放按这么大切块，一块解压之后不会超过接收方的帧长度上限
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    private final BufferPool pool;
+    //聊天消息短、要求快，用最快的压缩级别；nowrap不带zlib头尾，省6个字节
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+
+    public FrameCompressor(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param frames 读模式的一个或多个完整帧，position不变
+     * @return 读模式的压缩帧，用完要release；压缩之后没有变小时返回null，调用者照原样发
+     */
+    public PooledBuffer compress(ByteBuffer frames) {
+        int length = frames.remaining();
+        //输出最多和输入一样长，放不下说明没变小
+        PooledBuffer compressed = pool.allocate(FrameEncoder.HEADER_LENGTH + length);
+        ByteBuffer out = compressed.buffer();
+        out.position(FrameEncoder.HEADER_LENGTH);
+        deflater.reset();
+        deflater.setInput(frames.duplicate());
+        deflater.finish();
+        while (!deflater.finished() && out.hasRemaining()) {
+            deflater.deflate(out);
+        }
+        if (!deflater.finished() || !out.hasRemaining()) {
+            compressed.release();
+            return null;
+        }
+        out.putInt(0, FrameEncoder.COMPRESSED_FLAG | (out.position() - FrameEncoder.HEADER_LENGTH));
+        out.flip();
+        return compressed;
+    }
+
+    /**
+     * 从frames的position开始，凑够CHUNK_SIZE字节的完整帧，至少一帧
+     * @return 这一块结束的位置，切在帧边界上
+     */
+    public static int chunkEnd(ByteBuffer frames) {
+        int end = frames.position();
+        while (end < frames.limit()) {
+            int next = end + FrameEncoder.HEADER_LENGTH + (frames.getInt(end) & ~FrameEncoder.FLAGS);
+            if (next - frames.position() > CHUNK_SIZE && end > frames.position()) {
+                break;
+            }
+            end = next;
+        }
+        return Math.min(end, frames.limit());
+    }
+
+    /**
+     * 释放Deflater的native内存
+     */
+    public void end() {
+        deflater.end();
+    }
+}
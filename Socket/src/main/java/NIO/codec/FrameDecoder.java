@@ -0,0 +1,259 @@
+package NIO.codec;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 长度前缀帧解码
+ * 每个连接一个实例，保存还没收完整的半包，
+ * 一次read读到的多个帧（粘包）都会被拆出来。
+ * 有半包时才从池里借累积缓冲，没有半包的连接不占内存
+ * 遇到文件帧就停下来，后面的文件内容由调用者用transferRaw或者直接从socket读走，
+ * 收完之后才继续拆帧
+ * 压缩帧在这里解开，调用者拿到的是里面的普通帧，不用管对方有没有压缩
+ */
+public class FrameDecoder {
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final BufferPool pool;
+    private final int maxFrameLength;
+    //累积的半包，读模式；没有半包时为null
+    private PooledBuffer cumulation;
+    //刚拆出来还没被取走的文件帧
+    private FileHeader fileHeader;
+    //文件内容还剩多少字节没收
+    private long rawRemaining;
+    //第一次收到压缩帧时才创建
+    private FrameInflater inflater;
+
+    public FrameDecoder(BufferPool pool) {
+        this(pool, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(BufferPool pool, int maxFrameLength) {
+        this.pool = pool;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * 把新读到的字节追加进来，取出所有完整的帧
+     * 取出的帧是in或者累积缓冲的视图，只在下次调用decode或discardReadBytes之前有效
+     * @param in 读模式，调用后被读完
+     * @param out 每个完整帧的内容（不含长度头）
+     */
+    public void decode(ByteBuffer in, List<ByteBuffer> out) throws IOException {
+        if (rawRemaining > 0) {
+            throw new IllegalStateException("文件内容还没收完");
+        }
+        discardReadBytes();
+        if (inflater != null) {
+            inflater.reset();
+        }
+        if (cumulation == null) {
+            //没有半包，直接在in上拆，不拷贝
+            split(in, out);
+            //遇到文件帧时剩下的是文件内容，留在in里给transferRaw
+            if (in.hasRemaining() && fileHeader == null) {
+                cumulation = pool.allocate(Math.max(INITIAL_CAPACITY, frameSize(in)));
+                cumulation.buffer().put(in);
+                cumulation.buffer().flip();
+            }
+            return;
+        }
+        ByteBuffer buffer = cumulation.buffer();
+        //切到写模式追加
+        buffer.compact();
+        if (buffer.remaining() < in.remaining()) {
+            grow(buffer.position() + in.remaining());
+            buffer = cumulation.buffer();
+        }
+        buffer.put(in);
+        buffer.flip();
+        split(buffer, out);
+    }
+
+    /**
+     * 取走decode时遇到的文件帧，没有返回null
+     * 取走之后inRaw()为true，直到文件内容收完
+     */
+    public FileHeader takeFileHeader() {
+        FileHeader header = fileHeader;
+        fileHeader = null;
+        return header;
+    }
+
+    public boolean inRaw() {
+        return rawRemaining > 0;
+    }
+
+    public long rawRemaining() {
+        return rawRemaining;
+    }
+
+    /**
+     * 是否还有已经读进来但没处理的字节，没有时才可以绕过解码器直接从socket读文件内容
+     */
+    public boolean hasBuffered() {
+        return cumulation != null && cumulation.buffer().hasRemaining();
+    }
+
+    /**
+     * 把已经读进来的文件内容写到target，先写累积缓冲里的，再写in里的
+     * @param in 读模式，文件内容之后的字节留在in里，由下一次decode处理
+     */
+    public void transferRaw(ByteBuffer in, WritableByteChannel target) throws IOException {
+        if (cumulation != null) {
+            transferRaw0(cumulation.buffer(), target);
+        }
+        transferRaw0(in, target);
+    }
+
+    /**
+     * 丢掉已经读进来的文件内容，不收文件的一端用，文件内容之后的字节留在in里
+     */
+    public void skipRaw(ByteBuffer in) {
+        if (cumulation != null) {
+            skipRaw0(cumulation.buffer());
+        }
+        skipRaw0(in);
+    }
+
+    /**
+     * 调用者绕过解码器直接收了n字节文件内容
+     */
+    public void rawTransferred(long n) {
+        rawRemaining -= n;
+    }
+
+    /**
+     * 上次拆出来的帧处理完之后调用，累积缓冲已经拆完就还回池里
+     */
+    public void discardReadBytes() {
+        if (cumulation != null && !cumulation.buffer().hasRemaining()) {
+            cumulation.release();
+            cumulation = null;
+        }
+    }
+
+    /**
+     * 连接关闭时调用
+     */
+    public void release() {
+        if (cumulation != null) {
+            cumulation.release();
+            cumulation = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private void split(ByteBuffer buffer, List<ByteBuffer> out) throws IOException {
+        while (buffer.remaining() >= FrameEncoder.HEADER_LENGTH) {
+            int header = buffer.getInt(buffer.position());
+            int length = header & ~FrameEncoder.FLAGS;
+            if (length > maxFrameLength) {
+                throw new IOException("非法帧长度：" + length);
+            }
+            if (buffer.remaining() < FrameEncoder.HEADER_LENGTH + length) {
+                //半包，等下次read
+                return;
+            }
+            int start = buffer.position() + FrameEncoder.HEADER_LENGTH;
+            if ((header & FrameEncoder.FLAGS) == FrameEncoder.FLAGS) {
+                throw new IOException("非法帧头：" + Integer.toHexString(header));
+            }
+            if ((header & FrameEncoder.COMPRESSED_FLAG) != 0) {
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(start);
+                payload.limit(start + length);
+                inflater().inflate(payload, out);
+                buffer.position(start + length);
+                continue;
+            }
+            if ((header & FrameEncoder.FILE_FLAG) != 0) {
+                splitFileHeader(buffer, start, length);
+                //后面是文件内容，不能再按帧拆
+                return;
+            }
+            ByteBuffer frame = buffer.duplicate();
+            frame.position(start);
+            frame.limit(start + length);
+            out.add(frame.slice());
+            buffer.position(start + length);
+        }
+    }
+
+    private void splitFileHeader(ByteBuffer buffer, int start, int length) throws IOException {
+        if (length < Long.BYTES) {
+            throw new IOException("非法文件帧长度：" + length);
+        }
+        long size = buffer.getLong(start);
+        if (size < 0) {
+            throw new IOException("非法文件大小：" + size);
+        }
+        ByteBuffer name = buffer.duplicate();
+        name.position(start + Long.BYTES);
+        name.limit(start + length);
+        fileHeader = new FileHeader(StandardCharsets.UTF_8.decode(name).toString(), size);
+        rawRemaining = size;
+        buffer.position(start + length);
+    }
+
+    private void transferRaw0(ByteBuffer buffer, WritableByteChannel target) throws IOException {
+        int n = (int) Math.min(buffer.remaining(), rawRemaining);
+        if (n == 0) {
+            return;
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + n);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        buffer.limit(limit);
+        rawRemaining -= n;
+    }
+
+    private void skipRaw0(ByteBuffer buffer) {
+        int n = (int) Math.min(buffer.remaining(), rawRemaining);
+        buffer.position(buffer.position() + n);
+        rawRemaining -= n;
+    }
+
+    //半包所在帧的完整大小，长度头还没收全时按头长度算
+    private int frameSize(ByteBuffer in) {
+        if (in.remaining() < FrameEncoder.HEADER_LENGTH) {
+            return FrameEncoder.HEADER_LENGTH;
+        }
+        return FrameEncoder.HEADER_LENGTH + (in.getInt(in.position()) & ~FrameEncoder.FLAGS);
+    }
+
+    //压缩帧里可能是历史回放的一整块，解压之后的总长放宽一倍，里面每一帧还是不能超过maxFrameLength
+    private FrameInflater inflater() {
+        if (inflater == null) {
+            inflater = new FrameInflater(maxFrameLength, 2 * maxFrameLength);
+        }
+        return inflater;
+    }
+
+    private void grow(int required) {
+        int capacity = cumulation.buffer().capacity();
+        while (capacity < required) {
+            capacity <<= 1;
+        }
+        PooledBuffer bigger = pool.allocate(capacity);
+        ByteBuffer old = cumulation.buffer();
+        old.flip();
+        bigger.buffer().put(old);
+        cumulation.release();
+        cumulation = bigger;
+    }
+}
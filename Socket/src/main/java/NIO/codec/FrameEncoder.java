@@ -0,0 +1,93 @@
+package NIO.codec;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 长度前缀帧编码
+ * 帧格式：4字节大端长度 + 消息内容
+ * 文件帧：长度最高位置1，内容是8字节文件大小 + 文件名，后面紧跟文件的原始字节
+ * 压缩帧：长度最高第二位置1，由FrameCompressor生成、FrameDecoder解开
+ * 直接编码进池化的堆外buffer，不经过临时的堆内buffer
+ * 不生成超过maxFrameLength的帧，对方的FrameDecoder会拒收并断开
+ */
+public class FrameEncoder {
+    public static final int HEADER_LENGTH = 4;
+    public static final int FILE_FLAG = 0x80000000;
+    public static final int COMPRESSED_FLAG = 0x40000000;
+    //长度头里的标志位，剩下的是长度
+    public static final int FLAGS = FILE_FLAG | COMPRESSED_FLAG;
+
+    private final BufferPool pool;
+    private final int maxFrameLength;
+    //CharsetEncoder不是线程安全的，多个reactor共用一个FrameEncoder
+    private final ThreadLocal<CharsetEncoder> encoders;
+
+    public FrameEncoder(Charset charset, BufferPool pool) {
+        this(charset, pool, FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameEncoder(final Charset charset, BufferPool pool, int maxFrameLength) {
+        this.pool = pool;
+        this.maxFrameLength = maxFrameLength;
+        //和charset.encode一样，非法字符替换掉而不是抛异常
+        this.encoders = ThreadLocal.withInitial(() -> charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE));
+    }
+
+    /**
+     * 编码一条消息
+     * @return 读模式，用完要release
+     * @throws IllegalArgumentException 编码之后超过maxFrameLength
+     */
+    public PooledBuffer encode(CharSequence msg) {
+        return encode(msg, 0, 0);
+    }
+
+    /**
+     * 编码文件帧头，文件内容由调用者紧接着发送
+     * @return 读模式，用完要release
+     * @throws IllegalArgumentException 文件名太长
+     */
+    public PooledBuffer encodeFileHeader(String fileName, long size) {
+        return encode(fileName, FILE_FLAG, size);
+    }
+
+    private PooledBuffer encode(CharSequence msg, int flags, long fileSize) {
+        CharsetEncoder encoder = encoders.get();
+        int prefix = flags == FILE_FLAG ? HEADER_LENGTH + Long.BYTES : HEADER_LENGTH;
+        int maxLength = prefix + (int) Math.ceil(msg.length() * (double) encoder.maxBytesPerChar());
+        PooledBuffer frame = pool.allocate(maxLength);
+        ByteBuffer buffer = frame.buffer();
+        buffer.position(HEADER_LENGTH);
+        if (flags == FILE_FLAG) {
+            buffer.putLong(fileSize);
+        }
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(msg), buffer, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(buffer);
+        }
+        if (!result.isUnderflow()) {
+            //按最大字节数申请的，不会溢出
+            frame.release();
+            throw new IllegalStateException("编码失败：" + result);
+        }
+        int length = buffer.position() - HEADER_LENGTH;
+        if (length > maxFrameLength) {
+            frame.release();
+            throw new IllegalArgumentException("帧长度" + length + "超过上限" + maxFrameLength);
+        }
+        buffer.putInt(0, flags | length);
+        buffer.flip();
+        return frame;
+    }
+}
@@ -0,0 +1,90 @@
+package NIO.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * 解开压缩帧，每个FrameDecoder（也就是每个连接）一个，复用同一个Inflater
+ * 解出来的帧放在堆内数组里，同一次decode解出来的多个压缩帧依次往后放；
+ * 数组不够时换一个大的，之前交出去的帧还指着旧数组，不会被覆盖
+ */
+class FrameInflater {
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final Inflater inflater = new Inflater(true);
+    //里面每个帧的上限，和FrameDecoder的一样，压缩不能用来绕过帧长度限制
+    private final int maxFrameLength;
+    //一个压缩帧解压之后最多多少字节，防止很小的压缩帧解出巨大的内容
+    private final int maxInflatedLength;
+    private byte[] out = new byte[INITIAL_CAPACITY];
+    private int used;
+
+    FrameInflater(int maxFrameLength, int maxInflatedLength) {
+        this.maxFrameLength = maxFrameLength;
+        this.maxInflatedLength = maxInflatedLength;
+    }
+
+    /**
+     * 每次decode开始时调用，上一次交出去的帧已经处理完了
+     */
+    void reset() {
+        used = 0;
+    }
+
+    /**
+     * 解压一个压缩帧的内容，里面的完整帧追加到frames
+     * @param payload 压缩帧的内容（不含长度头），position不变
+     */
+    void inflate(ByteBuffer payload, List<ByteBuffer> frames) throws IOException {
+        int start = used;
+        inflater.reset();
+        inflater.setInput(payload.duplicate());
+        try {
+            while (!inflater.finished()) {
+                if (used - start > maxInflatedLength) {
+                    throw new IOException("压缩帧解压之后超过" + maxInflatedLength + "字节");
+                }
+                if (used == out.length) {
+                    //这一帧已经解出来的部分搬到新数组开头
+                    byte[] bigger = new byte[Math.max(out.length << 1, (used - start) << 1)];
+                    System.arraycopy(out, start, bigger, 0, used - start);
+                    used -= start;
+                    start = 0;
+                    out = bigger;
+                }
+                int n = inflater.inflate(out, used, out.length - used);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("压缩帧不完整");
+                }
+                used += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("非法压缩帧：" + e.getMessage());
+        }
+        split(ByteBuffer.wrap(out, start, used - start), frames);
+    }
+
+    void end() {
+        inflater.end();
+    }
+
+    //压缩帧里只能是完整的普通帧
+    private void split(ByteBuffer buffer, List<ByteBuffer> frames) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (buffer.remaining() < FrameEncoder.HEADER_LENGTH) {
+                throw new IOException("压缩帧里的帧不完整");
+            }
+            int length = buffer.getInt();
+            if (length < 0 || length > maxFrameLength || length > buffer.remaining()) {
+                throw new IOException("压缩帧里的帧长度非法：" + length);
+            }
+            ByteBuffer frame = buffer.slice();
+            frame.limit(length);
+            frames.add(frame);
+            buffer.position(buffer.position() + length);
+        }
+    }
+}
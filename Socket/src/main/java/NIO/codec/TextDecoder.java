@@ -0,0 +1,51 @@
+package NIO.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 把帧内容解码成字符，复用同一个CharsetDecoder和CharBuffer，不像charset.decode每次都新建
+ * 不是线程安全的，每个reactor（客户端只有一个）一个实例
+ * 帧是完整的，多字节字符不会被拆在两次decode之间，不用保存上次剩下的字节
+ */
+public class TextDecoder {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final CharsetDecoder decoder;
+    private CharBuffer chars = CharBuffer.allocate(INITIAL_CAPACITY);
+
+    public TextDecoder(Charset charset) {
+        //和charset.decode一样，非法字节替换掉而不是抛异常
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * 解码一帧
+     * @param frame 读模式，调用后被读完
+     * @return 读模式，只在下次调用decode之前有效，要保存就toString
+     */
+    public CharBuffer decode(ByteBuffer frame) {
+        int required = (int) Math.ceil(frame.remaining() * (double) decoder.maxCharsPerByte());
+        if (chars.capacity() < required) {
+            chars = CharBuffer.allocate(Math.max(required, chars.capacity() << 1));
+        }
+        chars.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(frame, chars, true);
+        if (result.isUnderflow()) {
+            result = decoder.flush(chars);
+        }
+        if (!result.isUnderflow()) {
+            //按最大字符数准备的，不会溢出
+            throw new IllegalStateException("解码失败：" + result);
+        }
+        chars.flip();
+        return chars;
+    }
+}
@@ -1,36 +1,147 @@
 package NIO.server;
 
-import BIO.server.ChatHandler;
+import NIO.buffer.BufferPool;
+import NIO.buffer.FileRegion;
+import NIO.buffer.Outbound;
+import NIO.buffer.PooledBuffer;
+import NIO.codec.FileHeader;
+import NIO.codec.FrameCompressor;
+import NIO.codec.FrameDecoder;
+import NIO.codec.FrameEncoder;
+import NIO.codec.TextDecoder;
+import NIO.store.LogSlice;
+import NIO.store.MessageStore;
+import common.Command;
+import common.RoomIndex;
+import common.config.ServerConfig;
+import common.lifecycle.Handoff;
+import common.limit.FloodPolicy;
+import common.limit.RateLimiter;
+import common.log.AsyncLogger;
+import common.metrics.ServerMetrics;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.*;
 import java.nio.charset.Charset;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- *
+ * 单reactor模式：一个selector处理accept和所有连接的读写
+ * 多reactor模式：boss selector只accept，连接轮流分给worker selector，
+ * 每个worker一个线程，广播按reactor分发，各reactor只写自己的连接
+ * 客户端/send发来的文件帧：内容用transferFrom从socket收进临时文件，
+ * 再用transferTo从文件直接发给房间里的人，都不经过堆内存
+ * 房间消息追加到按房间分的内存映射日志，进房间时回放最近几条，/history 位置 回放之后的所有消息
+ * 统计信息通过JMX发布，设置了statsPort时还可以GET /stats；日志异步输出，不阻塞reactor
+ * 每个reactor一个时间轮做空闲检测：安静了一半空闲时间发/ping，整个空闲时间都没有收发就断开
+ * 集群：clusterPort接收别的节点的链路，boss主动连peers里的节点，房间广播转发给所有节点
+ * 压缩：客户端发/compress开启，超过阈值的广播在发送者的reactor里压缩一次，开了压缩的接收者共用压缩帧，
+ * 历史回放按块压缩；客户端发来的压缩帧由FrameDecoder解开
+ * 端口、backlog、socket选项、缓冲、队列这些都可以用ServerConfig配置，见main
+ * 关闭：shutdown先停止accept和写日志，断开节点链路，通知每个客户端；之后照常读和转发，
+ * 整个服务器安静下来之后发送队列写完的就断开，超过drainTimeout的直接断开；热重启见Handoff
  */
 public class ChatServer {
     private static final int DEFAULT_PORT = 8888;
     private static final String QUIT = "quit";
-    private static final int BUFFER=1024;
+    private static final int DEFAULT_MAX_QUEUED_MESSAGES = 1024;
+    private static final long DEFAULT_MAX_FILE_SIZE = 100 * 1024 * 1024;
+    //转发时要加上"客户端[用户名]私聊:"，用户名最多32个字符，留出前缀的位置，
+    //转发出去的帧才不会超过接收者FrameDecoder的上限
+    private static final int MAX_MESSAGE_LENGTH = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH - 128;
+    //每次读事件最多直接收这么多文件内容，不让一个上传占住reactor
+    private static final long UPLOAD_CHUNK = 256 * 1024;
+    private static final int DEFAULT_HISTORY_SIZE = 20;
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 64;
+    private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    private static final long PEER_RECONNECT_SECONDS = 1;
+    //节点链路上一轮select能攒下整个房间的突发流量，上限比客户端大得多；跟不上就断开重连，不悄悄丢
+    private static final int PEER_MAX_QUEUED_MESSAGES = 64 * 1024;
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final int DEFAULT_DRAIN_TIMEOUT_SECONDS = 10;
+    //排空时每隔多久检查一次发送队列，这段时间里没有收到消息才开始断开
+    private static final long DRAIN_CHECK_MILLIS = 100;
 
     private ServerSocketChannel server;
-    private Selector selector;
-    //从client读取
-    private ByteBuffer rBuffer=ByteBuffer.allocate(BUFFER);
-    //转发
-    private ByteBuffer wBuffer=ByteBuffer.allocate(BUFFER);
+    //负责accept，单reactor模式下也负责读写；shutdown在别的线程读
+    private volatile Reactor boss;
+    private Reactor[] workers;
+    //挂连接的reactor：单reactor模式下是boss，否则是全部worker
+    private Reactor[] ioReactors;
+    //轮询分配连接
+    private int nextWorker;
+    private AtomicLong nextSessionId = new AtomicLong();
+    //用户名 -> 连接，所有reactor共用，私聊一次查找
+    private ConcurrentHashMap<String, Connection> users = new ConcurrentHashMap<>();
     private Charset charset = Charset.forName("UTF-8");
+    //端口之外的socket选项，按ServerConfig创建时用它的，否则都是默认值
+    private ServerConfig config = new ServerConfig(DEFAULT_PORT);
+    //读缓冲、半包、编码后的帧都从这里借堆外buffer
+    private BufferPool bufferPool = new BufferPool();
+    private FrameEncoder encoder = new FrameEncoder(charset, bufferPool);
     //存储用户自定义端口，和有参构造函数配合
     private int port;
+    //worker数量，0表示单reactor
+    private int workerCount;
+    //每个reactor一个读缓冲
+    private int readBufferSize = config.readBufferSize();
+    //每个连接发送队列的上限，和满了之后的处理
+    private int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    private SlowClientPolicy slowClientPolicy = SlowClientPolicy.DROP_OLDEST;
+    //每个客户端的限速，都为0表示不限；超限之后的处理
+    private double messagesPerSecond;
+    private int messageBurst;
+    private double bytesPerSecond;
+    private int byteBurst;
+    private FloodPolicy floodPolicy = FloodPolicy.DELAY;
+    //上传文件的大小上限和临时目录
+    private long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private Path uploadDir;
+    //消息日志目录，null表示不保存历史；进房间时回放的条数
+    private Path logDir = Paths.get("chat-log");
+    private int historySize = DEFAULT_HISTORY_SIZE;
+    private MessageStore store;
+    private ServerMetrics metrics = new ServerMetrics("nio");
+    //纯文本统计的HTTP端口，0表示不开
+    private int statsPort;
+    //一次gathering write最多合并几条消息；消息最多攒多久再写，0表示每轮select都写
+    private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    private long flushDelayNanos;
+    //多久没有收发数据就断开，0表示不检测
+    private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_SECONDS);
+    //接收别的节点链路的端口，0表示不接收；要主动连的节点
+    private int clusterPort;
+    private List<InetSocketAddress> peers = new ArrayList<>();
+    private ServerSocketChannel clusterServer;
+    //没配置集群时为null
+    private Cluster cluster;
+    //帧超过这么多字节才压缩，0表示不支持压缩
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    //开了压缩的连接数，没有的时候广播不用压缩
+    private AtomicInteger compressedConnections = new AtomicInteger();
+    //关闭时最多等多久把发送队列写完
+    private long drainTimeoutNanos = TimeUnit.SECONDS.toNanos(DEFAULT_DRAIN_TIMEOUT_SECONDS);
+    //热重启交接，不为null时用SO_REUSEPORT绑定端口
+    private Handoff handoff;
+    //开始排空之后不再accept、不再写日志
+    private volatile boolean draining;
+    //还没排空的reactor数，都排空了boss才退出
+    private AtomicInteger drainingReactors = new AtomicInteger();
+    //start返回之前countDown，shutdown等它
+    private CountDownLatch stopped = new CountDownLatch(1);
 
     //主逻辑，处理exception
     public void start() {
@@ -38,94 +149,1062 @@ public class ChatServer {
             server=ServerSocketChannel.open();
             //关闭阻塞
             server.configureBlocking(false);
-            server.socket().bind(new InetSocketAddress(port));
-
-            selector=Selector.open();
-            server.register(selector, SelectionKey.OP_ACCEPT);
-            System.out.println("启动服务器，监听端口："+port+"...");
-            while (true) {
-                //阻塞式，注册的监听事件发生才返回
-                selector.select();
-                //返回处触发的事件
-                Set<SelectionKey> selectionKeys = selector.selectedKeys();
-                for (SelectionKey key : selectionKeys) {
-                    //处理被触发的事件
-                    handles(key);
-                }
-                //清除一下
-                selectionKeys.clear();
+            if (handoff != null || config.reusePort()) {
+                //老进程还在监听，新进程也能绑定同一个端口
+                server.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (config.receiveBufferSize() > 0) {
+                //accept出来的连接继承监听socket的接收缓冲，要在握手之前设置，窗口缩放才能按它协商
+                server.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize());
+            }
+            server.socket().bind(new InetSocketAddress(port), config.backlog());
+            uploadDir = Files.createTempDirectory("chat-upload");
+            if (logDir != null) {
+                store = new MessageStore(logDir);
+            }
+
+            boss = new Reactor("boss", this, bufferPool, readBufferSize, writeBatchSize, flushDelayNanos);
+            server.register(boss.selector(), SelectionKey.OP_ACCEPT);
+            if (clusterPort > 0 || !peers.isEmpty()) {
+                startCluster();
             }
+            if (handoff == null) {
+                metrics.start(statsPort);
+            } else {
+                //等老进程不再写日志再开始；统计端口不能复用，老进程退出之后再绑定
+                handoff.takeOver().thenRun(() -> metrics.start(statsPort));
+            }
+            workers = new Reactor[workerCount];
+            for (int i = 0; i < workerCount; i++) {
+                workers[i] = new Reactor("worker-" + (i + 1), this, bufferPool, readBufferSize, writeBatchSize, flushDelayNanos);
+                new Thread(workers[i], workers[i].name()).start();
+            }
+            ioReactors = workerCount == 0 ? new Reactor[]{boss} : workers;
+            AsyncLogger.info("启动服务器，监听端口："+port+"，worker数量："+workerCount+"...");
+            //boss在当前线程跑，和原来一样阻塞在start
+            boss.run();
         } catch (IOException e) {
             e.printStackTrace();
         }finally {
             //关闭
-            close(selector);
+            if (workers != null) {
+                for (Reactor worker : workers) {
+                    if (worker != null) {
+                        worker.shutdown();
+                    }
+                }
+            }
+            close(server);
+            close(clusterServer);
+            metrics.stop();
+            if (store != null) {
+                store.flush();
+            }
+            if (handoff != null) {
+                handoff.release();
+            }
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * 优雅关闭，任何线程都可以调用（比如shutdown hook），阻塞到start返回，最多多等几秒
+     */
+    public void shutdown() {
+        Reactor boss = this.boss;
+        if (boss != null) {
+            boss.execute(this::beginDrain);
+        }
+        try {
+            stopped.await(drainTimeoutNanos + TimeUnit.SECONDS.toNanos(DEFAULT_DRAIN_TIMEOUT_SECONDS), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //在boss线程里调用
+    private void beginDrain() {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        //关闭通道会取消它在selector上的注册
+        close(server);
+        close(clusterServer);
+        if (store != null) {
+            store.flush();
+        }
+        //新进程等的就是这一步
+        if (handoff != null) {
+            handoff.release();
+        }
+        AsyncLogger.info("停止接受新连接，开始排空发送队列...");
+        if (workers.length > 0) {
+            //多reactor模式下boss上只有连出去的节点链路
+            for (Connection connection : new ArrayList<>(boss.connections())) {
+                disconnect(connection);
+            }
+        }
+        final long deadline = System.nanoTime() + drainTimeoutNanos;
+        drainingReactors.set(ioReactors.length);
+        for (final Reactor reactor : ioReactors) {
+            reactor.runInLoop(() -> drain(reactor, deadline));
+        }
+    }
+
+    //在reactor线程里调用：节点链路直接断开，客户端发关闭通知
+    private void drain(Reactor reactor, long deadline) {
+        for (Connection connection : new ArrayList<>(reactor.connections())) {
+            if (connection.isPeer()) {
+                disconnect(connection);
+            } else {
+                reply(connection, "服务器正在关闭，请稍后重新连接");
+            }
+        }
+        checkDrained(reactor, deadline, -1);
+    }
+
+    //已经发出的消息还在转发时谁都不断开，不然后到的接收者会漏掉；安静下来之后发送队列写完的断开，
+    //写进socket发送缓冲的部分关闭之后内核照样会发出去
+    private void checkDrained(final Reactor reactor, final long deadline, long lastMessagesIn) {
+        final long messagesIn = metrics.messagesIn.sum();
+        boolean quiet = messagesIn == lastMessagesIn;
+        boolean expired = System.nanoTime() - deadline >= 0;
+        int dropped = 0;
+        for (Connection connection : new ArrayList<>(reactor.connections())) {
+            if (quiet && connection.queuedMessages() == 0) {
+                disconnect(connection);
+            } else if (expired) {
+                dropped++;
+                disconnect(connection);
+            }
+        }
+        if (dropped > 0) {
+            AsyncLogger.info(reactor.name() + "排空超时，" + dropped + "个连接的消息没有发完");
+        }
+        if (!reactor.connections().isEmpty()) {
+            reactor.timers().schedule(() -> checkDrained(reactor, deadline, messagesIn), DRAIN_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        } else if (drainingReactors.decrementAndGet() == 0) {
+            //boss退出之后start的finally关闭worker
+            boss.execute(boss::shutdown);
         }
     }
 
     public void handles(SelectionKey key) throws IOException {
-        //Accept事件-和客户端建立连接
+        //Accept事件-和客户端建立连接，clusterServer上的是别的节点
         if(key.isAcceptable()){
             ServerSocketChannel server = (ServerSocketChannel) key.channel();
             SocketChannel client=server.accept();
+            if (client == null) {
+                return;
+            }
             client.configureBlocking(false);
-            client.register(selector,SelectionKey.OP_READ);
-            System.out.println(getClientName(client)+"已连接");
+            final boolean peer = server == clusterServer;
+            if (peer && !acceptPeer(client)) {
+                return;
+            }
+            if (workers.length == 0) {
+                register(boss, client, peer);
+            } else {
+                //轮流交给worker，注册要在worker自己的线程里做
+                final Reactor worker = workers[nextWorker];
+                //到头就回到0，一直累加的话2^31次accept之后会溢出成负数
+                nextWorker = (nextWorker + 1) % workers.length;
+                worker.execute(() -> register(worker, client, peer));
+            }
+            return;
+        }
+        //Connect事件-连向别的节点的链路建立了
+        if(key.isConnectable()){
+            finishConnectPeer(key, (PeerLink) key.attachment());
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        //Write事件- 发送缓冲有空间了，继续写队列
+        if(key.isWritable()){
+            //发送缓冲腾出了空间，说明对端在收
+            connection.touch();
+            flush(connection);
+            if (!key.isValid()) {
+                return;
+            }
         }
         //Read事件- 客户端发送了信息
-        else if(key.isReadable()){
-            SocketChannel client = (SocketChannel) key.channel();
-            String fwdMsg=receive(client);
-            if(fwdMsg.isEmpty()){
-                //客户端异常，selector停止监听
-                key.cancel();
-                selector.wakeup();
-            }else{
-                forwardMessage(client,fwdMsg);
-                System.out.println(getClientName(client)+":"+fwdMsg);
-                if(readyToQuit(fwdMsg)){
-                    key.cancel();
-                    selector.wakeup();
-                    System.out.println(getClientName(client)+"已断开连接");
+        if(key.isValid()&&key.isReadable()){
+            connection.touch();
+            try {
+                receive(connection);
+            } catch (IOException e) {
+                //连接被重置、帧不合法或者文件写失败，只断开这一个客户端
+                AsyncLogger.info(connection.name()+"异常："+e.getMessage());
+                disconnect(connection);
+            }
+        }
+    }
+
+    /**
+     * 检查限速，超限时按floodPolicy处理
+     * @return true表示这条消息不处理了（丢弃或者连接已经断开）
+     */
+    private boolean rateLimited(Connection connection, int size) {
+        RateLimiter limiter = connection.rateLimiter();
+        if (limiter == null) {
+            return false;
+        }
+        long wait = limiter.acquire(size);
+        if (wait == 0) {
+            return false;
+        }
+        switch (floodPolicy) {
+            case DELAY:
+                //这次读到的照常处理，之后暂停读取直到欠账还清，TCP窗口会让客户端慢下来
+                limiter.forceAcquire(size);
+                connection.throttle(wait);
+                return false;
+            case DISCONNECT:
+                AsyncLogger.info(connection.name()+"发送过快，断开连接");
+                disconnect(connection);
+                return true;
+            default:
+                if (limiter.shouldNotify()) {
+                    reply(connection, "发送太快，消息被丢弃");
                 }
+                return true;
+        }
+    }
+
+    /**
+     * 处理一条消息
+     * @return false表示连接已经断开，剩下的不用处理了
+     */
+    private boolean handleMessage(Connection connection, CharBuffer fwdMsg) {
+        metrics.messagesIn.increment();
+        //房间命令不转发，只有/和@开头的才转成String解析
+        if (fwdMsg.hasRemaining() && (fwdMsg.get(0) == '/' || fwdMsg.get(0) == '@')) {
+            Command command = Command.parse(fwdMsg.toString());
+            if (command != null) {
+                handleCommand(connection, command);
+                return connection.key().isValid();
+            }
+        }
+        forwardMessage(connection,fwdMsg);
+        if(QUIT.contentEquals(fwdMsg)){
+            AsyncLogger.info(connection.name()+"已断开连接");
+            disconnect(connection);
+            return false;
+        }
+        return true;
+    }
+
+    //收到文件帧，后面的内容写进临时文件
+    private boolean startUpload(Connection connection, FileHeader header) throws IOException {
+        if (header.size() > maxFileSize) {
+            AsyncLogger.info(connection.name()+"发送的文件过大："+header.size()+"字节，断开连接");
+            disconnect(connection);
+            return false;
+        }
+        connection.startUpload(new FileUpload(uploadDir, header));
+        return true;
+    }
+
+    //文件收完了，通知房间里的人并把文件发过去
+    private void finishUpload(Connection connection) throws IOException {
+        FileUpload upload = connection.finishUpload();
+        FileRegion.SharedFile file = upload.complete();
+        forwardMessage(connection, "发送了文件[" + upload.name() + "]，共" + upload.size() + "字节");
+        //文件帧头编码一次，每个接收者一个独立进度的FileRegion
+        broadcast(connection, connection.room(), new FileRegion(encoder.encodeFileHeader(upload.name(), file.size()), file), null);
+        file.release();
+        reply(connection, "文件[" + upload.name() + "]已发送");
+    }
+
+    //在reactor线程里调用
+    private void register(Reactor reactor, SocketChannel client, boolean peer) {
+        try {
+            configureSocket(client);
+            SelectionKey clientKey = client.register(reactor.selector(), SelectionKey.OP_READ);
+            //每个连接一个Connection，保存半包和发送队列
+            //分配唯一id，不再用远端端口区分客户端
+            Connection connection = new Connection(nextSessionId.incrementAndGet(), reactor, clientKey,
+                    bufferPool, maxQueuedMessages, slowClientPolicy, peer);
+            clientKey.attach(connection);
+            if (peer) {
+                //别的节点连进来的链路只收转发，不进房间，不做心跳，靠TCP keepalive发现断线
+                client.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+                connection.setPeerName(String.valueOf(client.getRemoteAddress()));
+                reactor.connections().add(connection);
+                AsyncLogger.info(connection.name()+"已连接到"+reactor.name());
+                return;
+            }
+            metrics.connectionsOpened.increment();
+            reactor.connections().add(connection);
+            reactor.rooms().join(connection.room(), connection);
+            users.put(connection.nick(), connection);
+            if (messagesPerSecond > 0 || bytesPerSecond > 0) {
+                connection.setRateLimiter(new RateLimiter(messagesPerSecond, messageBurst, bytesPerSecond, byteBurst, metrics));
+            }
+            AsyncLogger.info(connection.name()+client.getRemoteAddress()+"已连接到"+reactor.name());
+            if (idleTimeoutNanos > 0) {
+                scheduleIdleCheck(connection, idleTimeoutNanos / 2);
+            }
+            replayHistory(connection, -1, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            close(client);
+        }
+    }
+
+    //客户端和节点链路都用配置的socket选项
+    private void configureSocket(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay());
+        if (config.sendBufferSize() > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, config.sendBufferSize());
+        }
+        if (config.receiveBufferSize() > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize());
+        }
+    }
+
+    private void scheduleIdleCheck(final Connection connection, long delayNanos) {
+        TimerWheel timers = connection.reactor().timers();
+        connection.setIdleCheck(timers.schedule(() -> checkIdle(connection), delayNanos, TimeUnit.NANOSECONDS));
+    }
+
+    //时间轮到期时调用，读写时只更新时间戳，不动时间轮
+    private void checkIdle(Connection connection) {
+        if (!connection.key().isValid()) {
+            return;
+        }
+        if (connection.isReadPaused()) {
+            //被别的慢客户端暂停了读取，收不到它的/pong，不能算它空闲，恢复读取之后重新计时
+            connection.touch();
+            scheduleIdleCheck(connection, idleTimeoutNanos / 2);
+            return;
+        }
+        long idle = System.nanoTime() - connection.lastActiveAt();
+        if (idle >= idleTimeoutNanos) {
+            AsyncLogger.info(connection.name()+"心跳超时，断开连接");
+            metrics.idleEvictions.increment();
+            disconnect(connection);
+            return;
+        }
+        long pingAfter = idleTimeoutNanos / 2;
+        if (idle >= pingAfter) {
+            //对端回/pong或者发任何消息都算活着
+            deliver(connection, encoder.encode(Command.PING), null);
+            scheduleIdleCheck(connection, idleTimeoutNanos - idle);
+        } else {
+            scheduleIdleCheck(connection, pingAfter - idle);
+        }
+    }
+
+    //在连接所属的reactor线程里调用
+    private void disconnect(Connection connection) {
+        if (connection.isPeer()) {
+            disconnectPeer(connection);
+            return;
+        }
+        metrics.connectionsClosed.increment();
+        if (connection.isCompression()) {
+            compressedConnections.decrementAndGet();
+        }
+        connection.key().cancel();
+        connection.reactor().connections().remove(connection);
+        connection.reactor().rooms().leave(connection.room(), connection);
+        users.remove(connection.nick(), connection);
+        connection.release();
+        close(connection.channel());
+    }
+
+    //在boss启动之前调用，连出去的链路都挂在boss上
+    private void startCluster() throws IOException {
+        cluster = new Cluster(bufferPool, peers);
+        if (clusterPort > 0) {
+            clusterServer = ServerSocketChannel.open();
+            clusterServer.configureBlocking(false);
+            if (handoff != null || config.reusePort()) {
+                clusterServer.setOption(StandardSocketOptions.SO_REUSEPORT, true);
             }
+            clusterServer.socket().bind(new InetSocketAddress(clusterPort), config.backlog());
+            clusterServer.register(boss.selector(), SelectionKey.OP_ACCEPT);
+        }
+        for (final PeerLink link : cluster.links()) {
+            boss.execute(() -> connectPeer(link));
         }
+        AsyncLogger.info("集群端口："+clusterPort+"，peer："+peers);
     }
 
-    private void forwardMessage(SocketChannel client, String fwdMsg) throws IOException {
-        for (SelectionKey key : selector.keys()) {
-            Channel connectedClient=key.channel();
-            if(connectedClient instanceof ServerSocketChannel){
+    //在boss线程里调用，不在peer列表里的地址连clusterPort直接关掉
+    private boolean acceptPeer(SocketChannel client) {
+        try {
+            InetSocketAddress remote = (InetSocketAddress) client.getRemoteAddress();
+            if (cluster.isKnownPeer(remote.getAddress())) {
+                return true;
+            }
+            AsyncLogger.info("拒绝不在peer列表里的节点连接："+remote);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        close(client);
+        return false;
+    }
+
+    //在boss线程里调用
+    private void connectPeer(PeerLink link) {
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            configureSocket(channel);
+            channel.connect(link.address());
+            channel.register(boss.selector(), SelectionKey.OP_CONNECT, link);
+        } catch (IOException e) {
+            close(channel);
+            scheduleReconnect(link);
+        }
+    }
+
+    private void finishConnectPeer(SelectionKey key, PeerLink link) {
+        SocketChannel channel = (SocketChannel) key.channel();
+        try {
+            channel.finishConnect();
+        } catch (IOException e) {
+            //对方还没启动，过一会儿再连
+            key.cancel();
+            close(channel);
+            scheduleReconnect(link);
+            return;
+        }
+        //只往对方发转发，读是为了发现断开
+        key.interestOps(SelectionKey.OP_READ);
+        Connection connection = new Connection(nextSessionId.incrementAndGet(), boss, key,
+                bufferPool, PEER_MAX_QUEUED_MESSAGES, SlowClientPolicy.DISCONNECT, true);
+        connection.setPeerName(link.address().getHostString() + ":" + link.address().getPort());
+        connection.setPeerLink(link);
+        key.attach(connection);
+        boss.connections().add(connection);
+        link.setConnection(connection);
+        AsyncLogger.info("已连接到"+connection.name());
+    }
+
+    private void scheduleReconnect(final PeerLink link) {
+        if (draining) {
+            return;
+        }
+        boss.timers().schedule(() -> connectPeer(link), PEER_RECONNECT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void disconnectPeer(Connection connection) {
+        connection.key().cancel();
+        connection.reactor().connections().remove(connection);
+        connection.release();
+        close(connection.channel());
+        AsyncLogger.info(connection.name()+"已断开");
+        PeerLink link = connection.peerLink();
+        if (link != null) {
+            link.setConnection(null);
+            scheduleReconnect(link);
+        }
+    }
+
+    //本节点的房间消息转发给每个节点，交给boss线程编码和发送
+    //序号要在boss线程里分配：在各个worker里分配的话，投递到boss的顺序和序号的顺序可能不一样，
+    //对方按最大序号去重，先到的大序号会让后到的小序号被当成重复丢掉
+    private void relay(final String room, PooledBuffer frame) {
+        final PooledBuffer shared = frame.retainedDuplicate();
+        boss.runInLoop(() -> sendRelay(room, shared));
+    }
+
+    //在boss线程里调用，转发帧编码一次，每条链路一个视图；链路没连上就丢掉
+    private void sendRelay(String room, PooledBuffer frame) {
+        PooledBuffer relay = cluster.encodeRelay(room, frame.buffer());
+        frame.release();
+        for (PeerLink link : cluster.links()) {
+            Connection connection = link.connection();
+            if (connection == null || !connection.key().isValid()) {
                 continue;
             }
-            //channel没被关闭，监视未被关闭
-            if(key.isValid()&&!client.equals(connectedClient)){
-                wBuffer.clear();
-                wBuffer.put(charset.encode(getClientName(client)+":"+fwdMsg));
-                wBuffer.flip();
-                while(wBuffer.hasRemaining()){
-                    ((SocketChannel)connectedClient).write(wBuffer);
+            metrics.relaysOut.increment();
+            if (!connection.enqueue(relay.retainedDuplicate(), null)) {
+                AsyncLogger.info(connection.name()+"接收过慢，断开连接");
+                disconnect(connection);
+            }
+        }
+        relay.release();
+    }
+
+    //别的节点转发来的消息，写进本节点的日志，发给本节点房间里的所有人
+    private void receiveRelay(Reactor reactor, ByteBuffer payload) throws IOException {
+        Cluster.Relay relay = cluster.decodeRelay(payload);
+        if (relay == null) {
+            return;
+        }
+        metrics.relaysIn.increment();
+        appendLog(relay.room(), relay.frame());
+        broadcast(null, relay.room(), relay.frame(), compress(reactor, relay.frame()));
+    }
+
+    //在发送者的reactor线程里调用
+    private void forwardMessage(final Connection sender, CharSequence fwdMsg) {
+        //在reactor共用的StringBuilder里拼好直接编码，不生成中间String
+        StringBuilder text = sender.reactor().text().append(sender.name()).append(':').append(fwdMsg);
+        AsyncLogger.info(text.toString());
+        //整条广播只编码一次，每个接收者拿一个共享内存、独立position的只读视图
+        PooledBuffer frame = encodeMessage(sender, text);
+        if (frame == null) {
+            return;
+        }
+        appendLog(sender.room(), frame);
+        if (cluster != null) {
+            relay(sender.room(), frame);
+        }
+        broadcast(sender, sender.room(), frame, compress(sender.reactor(), frame));
+    }
+
+    /**
+     * 长度在收的时候检查过了，但非法字节解码成U+FFFD之后会变长，编码之后还是可能超过上限
+     * @return 超过上限时回复发送者并返回null
+     */
+    private PooledBuffer encodeMessage(Connection sender, CharSequence text) {
+        try {
+            return encoder.encode(text);
+        } catch (IllegalArgumentException e) {
+            reply(sender, "消息过长，没有发送");
+            return null;
+        }
+    }
+
+    /**
+     * 有人开了压缩并且帧够大时压缩一次，给所有开了压缩的接收者共用
+     * @return 不用压缩或者压缩之后没变小时返回null
+     */
+    private PooledBuffer compress(Reactor reactor, PooledBuffer frame) {
+        if (compressionThreshold <= 0 || frame.buffer().remaining() < compressionThreshold
+                || compressedConnections.get() == 0) {
+            return null;
+        }
+        return reactor.compressor().compress(frame.buffer());
+    }
+
+    private void appendLog(String room, PooledBuffer frame) {
+        //排空时日志可能已经交给了新进程
+        if (store != null && !draining) {
+            try {
+                store.append(room, frame.buffer());
+            } catch (IOException e) {
+                //写日志失败不影响在线的人收消息
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 回放当前房间的历史消息，直接把日志映射区的切片放进发送队列，不重新编码
+     * @param offset 从这个位置开始，小于0表示最近historySize条
+     * @param always 没有历史消息时是否也回复下一条的位置
+     */
+    private void replayHistory(Connection connection, long offset, boolean always) {
+        if (store == null) {
+            if (always) {
+                reply(connection, "服务器没有保存历史消息");
+            }
+            return;
+        }
+        List<ByteBuffer> slices = new ArrayList<>();
+        long next;
+        try {
+            next = store.read(connection.room(), offset, historySize, slices);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (slices.isEmpty() && !always) {
+            return;
+        }
+        for (ByteBuffer slice : slices) {
+            if (connection.isCompression()) {
+                deliverCompressed(connection, slice);
+            } else {
+                deliver(connection, new LogSlice(slice), null);
+            }
+        }
+        //客户端记下这个位置，重连之后用/history 位置补上错过的消息
+        reply(connection, "历史消息到此为止，下一条位置：" + next);
+    }
+
+    //历史日志的切片按块压缩之后发，块太小或者压不动的照原样发
+    private void deliverCompressed(Connection connection, ByteBuffer slice) {
+        FrameCompressor compressor = connection.reactor().compressor();
+        while (slice.hasRemaining()) {
+            ByteBuffer chunk = slice.duplicate();
+            chunk.limit(FrameCompressor.chunkEnd(slice));
+            slice.position(chunk.limit());
+            PooledBuffer compressed = chunk.remaining() < compressionThreshold ? null : compressor.compress(chunk);
+            if (compressed == null) {
+                deliver(connection, new LogSlice(chunk), null);
+            } else {
+                metrics.compressedFrames.increment();
+                metrics.compressionSavedBytes.add(chunk.remaining() - compressed.buffer().remaining());
+                deliver(connection, compressed, null);
+            }
+        }
+    }
+
+    //发给房间里除发送者以外的人，frame和compressed交给broadcast负责release
+    //sender为null表示别的节点转发来的，发给房间里所有人；compressed为null表示不压缩
+    private void broadcast(final Connection sender, final String room, Outbound frame, PooledBuffer compressed) {
+        final long start = System.nanoTime();
+        //当前线程所在的reactor直接写，其他reactor各投递一个任务，由它们自己写自己的连接
+        for (final Reactor reactor : ioReactors) {
+            if (reactor.inEventLoop()) {
+                fanOut(reactor, room, frame, compressed, sender, start);
+            } else if (reactor.rooms().size(room) > 0) {
+                //这个reactor上没有该房间的成员就不用打扰它
+                final Outbound shared = frame.retainedDuplicate();
+                final PooledBuffer sharedCompressed = compressed == null ? null : compressed.retainedDuplicate();
+                reactor.execute(() -> {
+                    fanOut(reactor, room, shared, sharedCompressed, sender, start);
+                    shared.release();
+                    if (sharedCompressed != null) {
+                        sharedCompressed.release();
+                    }
+                });
+            }
+        }
+        frame.release();
+        if (compressed != null) {
+            compressed.release();
+        }
+    }
+
+    //在reactor线程里调用，只处理这个reactor上该房间的成员，不负责release frame
+    //start是广播开始的时间，跨reactor的排队时间也算进扇出延迟
+    private void fanOut(Reactor reactor, String room, Outbound frame, PooledBuffer compressed,
+                        Connection sender, long start) {
+        List<Connection> failed = null;
+        int compressedCount = 0;
+        for (Connection recipient : reactor.rooms().members(room)) {
+            if (recipient == sender) {
+                continue;
+            }
+            Outbound copy;
+            if (compressed != null && recipient.isCompression()) {
+                copy = compressed.retainedDuplicate();
+                compressedCount++;
+            } else {
+                copy = frame.retainedDuplicate();
+            }
+            //只进发送队列，本轮结束时reactor统一写，不在这里等慢客户端
+            if (!recipient.enqueue(copy, sender)) {
+                AsyncLogger.info(recipient.name()+"接收过慢，断开连接");
+                failed = addFailed(failed, recipient);
+            }
+        }
+        if (compressedCount > 0) {
+            metrics.compressedFrames.add(compressedCount);
+            metrics.compressionSavedBytes.add((long) compressedCount
+                    * (frame.nioBuffer().remaining() - compressed.buffer().remaining()));
+        }
+        reactor.fanOutLatency().record(System.nanoTime() - start);
+        //遍历完再断开，避免边遍历边修改
+        if (failed != null) {
+            for (Connection connection : failed) {
+                disconnect(connection);
+            }
+        }
+    }
+
+    //处理房间命令，结果只回复给发命令的人，在连接所属的reactor线程里调用
+    private void handleCommand(Connection connection, Command command) {
+        switch (command.type()) {
+            case JOIN:
+                if (command.argument().isEmpty()) {
+                    reply(connection, "用法：/join 房间名");
+                } else {
+                    changeRoom(connection, command.argument());
+                }
+                break;
+            case LEAVE:
+                changeRoom(connection, RoomIndex.DEFAULT_ROOM);
+                break;
+            case ROOM:
+                int count = 0;
+                for (Reactor reactor : ioReactors) {
+                    count += reactor.rooms().size(connection.room());
                 }
+                reply(connection, "当前房间[" + connection.room() + "]，共" + count + "人");
+                break;
+            case NICK:
+                changeNick(connection, command.argument());
+                break;
+            case DIRECT:
+                sendDirect(connection, command.argument(), command.text());
+                break;
+            case HISTORY:
+                if (command.argument().isEmpty()) {
+                    replayHistory(connection, -1, true);
+                } else {
+                    try {
+                        replayHistory(connection, Long.parseLong(command.argument()), true);
+                    } catch (NumberFormatException e) {
+                        reply(connection, "用法：/history [位置]");
+                    }
+                }
+                break;
+            case PING:
+                reply(connection, Command.PONG);
+                break;
+            case PONG:
+                //读事件已经更新了活跃时间
+                break;
+            case COMPRESS:
+                changeCompression(connection, command.argument());
+                break;
+        }
+    }
+
+    private void changeCompression(Connection connection, String argument) {
+        boolean on;
+        if (argument.isEmpty() || "deflate".equals(argument)) {
+            on = true;
+        } else if ("off".equals(argument)) {
+            on = false;
+        } else {
+            reply(connection, "用法：/compress [deflate|off]");
+            return;
+        }
+        if (on && compressionThreshold <= 0) {
+            reply(connection, "服务器没有开启压缩");
+            return;
+        }
+        if (on != connection.isCompression()) {
+            connection.setCompression(on);
+            if (on) {
+                compressedConnections.incrementAndGet();
+            } else {
+                compressedConnections.decrementAndGet();
             }
         }
+        reply(connection, on ? "已开启压缩：deflate，超过" + compressionThreshold + "字节的消息压缩之后发送" : "已关闭压缩");
     }
 
-    private String receive(SocketChannel client) throws IOException {
+    private void changeNick(Connection connection, String nick) {
+        if (!Command.isValidNick(nick)) {
+            reply(connection, "用法：/nick 名字（不能有空格，不能全是数字）");
+            return;
+        }
+        //先占新名字再放旧名字，不同reactor同时抢一个名字只有一个成功
+        if (users.putIfAbsent(nick, connection) != null) {
+            reply(connection, "用户名[" + nick + "]已被占用");
+            return;
+        }
+        users.remove(connection.nick(), connection);
+        connection.setNick(nick);
+        reply(connection, "用户名已改为[" + nick + "]");
+    }
+
+    //私聊：一次查找，投递到对方的reactor写一次
+    private void sendDirect(final Connection sender, String nick, String text) {
+        if (text.isEmpty()) {
+            reply(sender, "用法：@用户名 内容");
+            return;
+        }
+        //不合法的名字不会有人用，也不能原样放进回复里
+        if (!Command.isValidName(nick)) {
+            reply(sender, "用法：@用户名 内容");
+            return;
+        }
+        final Connection target = users.get(nick);
+        if (target == null) {
+            reply(sender, "用户[" + nick + "]不在线");
+            return;
+        }
+        final PooledBuffer frame = encodeMessage(sender, sender.name() + "私聊:" + text);
+        if (frame == null) {
+            return;
+        }
+        target.reactor().runInLoop(() -> deliver(target, frame, sender));
+    }
+
+    //在接收者的reactor线程里调用，frame交给接收者release
+    private void deliver(Connection recipient, Outbound frame, Connection sender) {
+        if (!recipient.key().isValid()) {
+            frame.release();
+            return;
+        }
+        if (!recipient.enqueue(frame, sender)) {
+            AsyncLogger.info(recipient.name()+"接收过慢，断开连接");
+            disconnect(recipient);
+        }
+    }
+
+    //在连接的reactor线程里调用，写发送队列，写失败就断开
+    void flush(Connection connection) {
+        try {
+            connection.flush();
+        } catch (IOException e) {
+            AsyncLogger.info(connection.name()+"异常："+e.getMessage());
+            disconnect(connection);
+        }
+    }
+
+    private void changeRoom(Connection connection, String room) {
+        RoomIndex<Connection> rooms = connection.reactor().rooms();
+        rooms.leave(connection.room(), connection);
+        connection.setRoom(room);
+        rooms.join(room, connection);
+        reply(connection, "已加入房间[" + room + "]");
+        replayHistory(connection, -1, false);
+    }
+
+    private void reply(Connection connection, String msg) {
+        deliver(connection, encoder.encode(msg), null);
+    }
+
+    private List<Connection> addFailed(List<Connection> failed, Connection connection) {
+        if (failed == null) {
+            failed = new ArrayList<>();
+        }
+        failed.add(connection);
+        return failed;
+    }
+
+    /**
+     * 读取并拆帧，一次可能拆出多条消息，按顺序处理
+     * 正在上传文件且没有缓冲的字节时，直接从socket收进文件
+     */
+    private void receive(Connection connection) throws IOException {
+        SocketChannel channel = connection.channel();
+        FrameDecoder decoder = connection.decoder();
+        if (decoder.inRaw() && !decoder.hasBuffered()) {
+            long n = connection.upload().transferFrom(channel, Math.min(decoder.rawRemaining(), UPLOAD_CHUNK));
+            decoder.rawTransferred(n);
+            metrics.bytesIn.add(n);
+            if (n > 0) {
+                if (!decoder.inRaw()) {
+                    finishUpload(connection);
+                }
+                //socket里还有数据的话selector会马上再通知
+                return;
+            }
+            //transferFrom分不清没数据和对端关闭，下面read一次确认
+        }
+        ByteBuffer rBuffer = connection.reactor().readBuffer();
+        int count;
         rBuffer.clear();
-        while (client.read(rBuffer)>0);
-        rBuffer.flip();
-        return String.valueOf(charset.decode(rBuffer));
+        while ((count = channel.read(rBuffer)) > 0) {
+            metrics.bytesIn.add(count);
+            rBuffer.flip();
+            if (!process(connection, rBuffer)) {
+                return;
+            }
+            if (connection.isThrottled()) {
+                //超过限速，剩下的留在socket里，恢复读取之后再收
+                return;
+            }
+            if (decoder.inRaw() && !decoder.hasBuffered()) {
+                //剩下的文件内容下次直接收
+                return;
+            }
+            rBuffer.clear();
+        }
+        if (count < 0) {
+            //客户端异常，selector停止监听
+            disconnect(connection);
+        }
     }
 
-    private String getClientName(SocketChannel client){
-        return "客户端["+client.socket().getPort()+"]";
+    /**
+     * 处理一次read读到的字节：先补完正在上传的文件，再拆帧，遇到文件帧就开始上传
+     * @return false表示连接已经断开
+     */
+    private boolean process(Connection connection, ByteBuffer in) throws IOException {
+        FrameDecoder decoder = connection.decoder();
+        List<ByteBuffer> frames = connection.reactor().frames();
+        TextDecoder textDecoder = connection.reactor().textDecoder();
+        while (true) {
+            if (connection.upload() != null) {
+                decoder.transferRaw(in, connection.upload().channel());
+                if (decoder.inRaw()) {
+                    return true;
+                }
+                finishUpload(connection);
+            }
+            frames.clear();
+            decoder.decode(in, frames);
+            //拆出来的帧是rBuffer或半包缓冲的视图，下次read之前要处理掉
+            for (ByteBuffer frame : frames) {
+                if (connection.isPeer()) {
+                    receiveRelay(connection.reactor(), frame);
+                    continue;
+                }
+                if (rateLimited(connection, frame.remaining())) {
+                    if (!connection.key().isValid()) {
+                        frames.clear();
+                        return false;
+                    }
+                    continue;
+                }
+                if (frame.remaining() > MAX_MESSAGE_LENGTH) {
+                    reply(connection, "消息过长，最多" + MAX_MESSAGE_LENGTH + "字节，没有发送");
+                    continue;
+                }
+                if (!handleMessage(connection, textDecoder.decode(frame))) {
+                    frames.clear();
+                    return false;
+                }
+            }
+            frames.clear();
+            FileHeader header = decoder.takeFileHeader();
+            if (header == null) {
+                decoder.discardReadBytes();
+                return true;
+            }
+            if (!startUpload(connection, header)) {
+                return false;
+            }
+        }
     }
+
     public ChatServer() {
         this(DEFAULT_PORT);
     }
 
     public ChatServer(int port) {
+        this(port, 0);
+    }
+
+    public ChatServer(int port, int workerCount) {
         this.port = port;
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * 按配置创建，之后还可以用setter改
+     * @throws IllegalArgumentException slowClientPolicy不认识
+     */
+    @SuppressWarnings("this-escape")
+    public ChatServer(ServerConfig config) {
+        this(config.port(), config.ioThreads());
+        this.config = config;
+        this.bufferPool = new BufferPool(config.poolBytesPerClass());
+        this.encoder = new FrameEncoder(charset, bufferPool);
+        this.readBufferSize = config.readBufferSize();
+        setStatsPort(config.statsPort());
+        setMaxQueuedMessages(config.maxQueuedMessages());
+        try {
+            setSlowClientPolicy(SlowClientPolicy.valueOf(config.slowClientPolicy()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("配置项slowClientPolicy的值不对：" + config.slowClientPolicy(), e);
+        }
+        setWriteBatchSize(config.writeBatchSize());
+        setFlushDelayMillis(config.flushDelayMillis());
+        setIdleTimeoutSeconds(config.idleTimeoutSeconds());
+        setDrainTimeoutSeconds(config.drainTimeoutSeconds());
+        setRateLimit(config.messagesPerSecond(), config.messageBurst(), config.bytesPerSecond(), config.byteBurst());
+        setFloodPolicy(config.floodPolicy());
+        if (config.logDir() != null) {
+            setLogDir(config.logDir().isEmpty() ? null : Paths.get(config.logDir()));
+        }
+        setHistorySize(config.historySize());
+        setMaxFileSize(config.maxFileSize());
+        setCompressionThreshold(config.compressionThreshold());
+        setHandoffFile(config.handoffFile());
+        setClusterPort(config.clusterPort());
+        setPeers(config.peers());
+    }
+
+    public BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    public void setStatsPort(int statsPort) {
+        this.statsPort = statsPort;
+    }
+
+    public void setMaxQueuedMessages(int maxQueuedMessages) {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    public void setSlowClientPolicy(SlowClientPolicy slowClientPolicy) {
+        this.slowClientPolicy = slowClientPolicy;
+    }
+
+    /**
+     * 每个客户端每秒最多发多少条消息、多少字节，burst是允许的突发量，0表示不限
+     */
+    public void setRateLimit(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst) {
+        this.messagesPerSecond = messagesPerSecond;
+        this.messageBurst = messageBurst;
+        this.bytesPerSecond = bytesPerSecond;
+        this.byteBurst = byteBurst;
+    }
+
+    public void setFloodPolicy(FloodPolicy floodPolicy) {
+        this.floodPolicy = floodPolicy;
+    }
+
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public void setLogDir(Path logDir) {
+        this.logDir = logDir;
+    }
+
+    public void setHistorySize(int historySize) {
+        this.historySize = historySize;
+    }
+
+    public void setWriteBatchSize(int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    public void setFlushDelayMillis(long flushDelayMillis) {
+        this.flushDelayNanos = TimeUnit.MILLISECONDS.toNanos(flushDelayMillis);
+    }
+
+    public void setIdleTimeoutSeconds(int idleTimeoutSeconds) {
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    }
+
+    /**
+     * 帧超过这么多字节才压缩，0表示不支持压缩
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public void setDrainTimeoutSeconds(int drainTimeoutSeconds) {
+        this.drainTimeoutNanos = TimeUnit.SECONDS.toNanos(drainTimeoutSeconds);
+    }
+
+    /**
+     * 热重启：用SO_REUSEPORT绑定端口，按pid文件接管老进程，为null表示不交接
+     */
+    public void setHandoffFile(Path pidFile) {
+        this.handoff = pidFile == null ? null : new Handoff(pidFile);
+    }
+
+    public void setClusterPort(int clusterPort) {
+        this.clusterPort = clusterPort;
+    }
+
+    /**
+     * 集群里其他节点的clusterPort地址，每个节点都要列出其他所有节点
+     * 连进clusterPort的链路也按这个列表放行，只比较IP
+     */
+    public void setPeers(List<InetSocketAddress> peers) {
+        this.peers = new ArrayList<>(peers);
     }
 
     public boolean readyToQuit(String msg) {
@@ -144,7 +1223,22 @@ public class ChatServer {
     }
 
     public static void main(String[] args) {
-        ChatServer chatServer = new ChatServer(7777);
+        //位置参数依次是worker数（默认每个核一个）、统计端口、端口、集群端口、其他节点的集群地址，
+        //比如 4 9998 7777 7101 127.0.0.1:7102,127.0.0.1:7103；其他的用--key=value或者--config=文件，
+        //热重启用--handoffFile=pid文件，新进程起来之后老进程排空退出
+        ChatServer chatServer;
+        try {
+            chatServer = new ChatServer(ServerConfig.parse(args, 7777,
+                    "ioThreads", "statsPort", "port", "clusterPort", "peers"));
+        } catch (IllegalArgumentException e) {
+            System.err.println("配置有误：" + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.err.println("读取配置文件失败：" + e);
+            return;
+        }
+        //kill或者Ctrl+C时先排空再退出
+        Runtime.getRuntime().addShutdownHook(new Thread(chatServer::shutdown, "shutdown"));
         chatServer.start();
     }
 }
\ No newline at end of file
@@ -0,0 +1,161 @@
+package NIO.server;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+import NIO.codec.FrameDecoder;
+import NIO.codec.FrameEncoder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 集群：按静态的peer列表全互联，每个节点主动连列表里的所有节点
+ * 链路是单向的，本节点的广播只从自己连出去的链路发，所以每条广播在每条链路上只走一次；
+ * 收到的转发只在本节点投递，不再转发。每条转发带(来源节点,序号)，重连之类造成的重复按序号丢掉
+ * 序号在boss线程里写进链路之前分配，每条链路上的序号都是递增的
+ * 去重只记每个来源的最大序号，前提是同一个来源的转发只从一条有序的链路到达；
+ * 同一个来源的转发要是从两条路径过来，先到的大序号会让后到的小序号被当成重复丢掉
+ * 每个节点的peer列表要包含其他所有节点，连进来的链路只接受peer列表里的地址，
+ * 链路上没有认证，clusterPort只应该对集群内网开放
+ * 转发帧：4字节长度 + 8字节来源节点 + 8字节序号 + 4字节房间名长度 + 房间名 + 原样的消息帧
+ */
+public class Cluster {
+    private static final int RELAY_HEADER_LENGTH = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+    private final BufferPool pool;
+    //每次启动随机生成，重启之后序号从头开始也不会被当成重复
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    //只在boss线程里分配
+    private long nextSeq;
+    //来源节点 -> 收到过的最大序号，同一个来源的转发按序号递增的顺序写进一条TCP链路，也按这个顺序到达
+    private final ConcurrentHashMap<Long, AtomicLong> lastSeen = new ConcurrentHashMap<>();
+    private final List<PeerLink> links = new ArrayList<>();
+    //peer列表里的IP，连进来的链路的源端口是随机的，只比较IP
+    private final Set<InetAddress> peerAddresses = new HashSet<>();
+
+    public Cluster(BufferPool pool, List<InetSocketAddress> peers) {
+        this.pool = pool;
+        for (InetSocketAddress peer : peers) {
+            links.add(new PeerLink(peer));
+            if (peer.getAddress() != null) {
+                peerAddresses.add(peer.getAddress());
+            }
+        }
+    }
+
+    List<PeerLink> links() {
+        return links;
+    }
+
+    /**
+     * 连进clusterPort的是不是peer列表里的节点，不是的话谁都可以冒充别的节点注入消息
+     */
+    boolean isKnownPeer(InetAddress address) {
+        return peerAddresses.contains(address);
+    }
+
+    /**
+     * 把一条已经编码好的消息帧包成转发帧，每条链路发它的retainedDuplicate
+     * 只能在boss线程里调用，分配序号的顺序就是发送的顺序
+     * @param frame 读模式，不会被改动
+     * @return 读模式，用完要release
+     */
+    public PooledBuffer encodeRelay(String room, ByteBuffer frame) {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        int length = RELAY_HEADER_LENGTH + roomBytes.length + frame.remaining();
+        PooledBuffer relay = pool.allocate(FrameEncoder.HEADER_LENGTH + length);
+        ByteBuffer buffer = relay.buffer();
+        buffer.putInt(length)
+                .putLong(nodeId)
+                .putLong(++nextSeq)
+                .putInt(roomBytes.length)
+                .put(roomBytes)
+                .put(frame.duplicate());
+        buffer.flip();
+        return relay;
+    }
+
+    /**
+     * 解开别的节点发来的转发帧
+     * @param payload 转发帧的内容（不含长度头），只在本次调用中有效
+     * @return 重复的或者自己发出去又绕回来的返回null
+     * @throws IOException 里面包的不是一个合法的消息帧，先检查再去重，不合法的序号不会记下来
+     */
+    public Relay decodeRelay(ByteBuffer payload) throws IOException {
+        if (payload.remaining() < RELAY_HEADER_LENGTH) {
+            throw new IOException("非法转发帧长度：" + payload.remaining());
+        }
+        long origin = payload.getLong();
+        long seq = payload.getLong();
+        int roomLength = payload.getInt();
+        if (roomLength <= 0 || roomLength > payload.remaining()) {
+            throw new IOException("非法房间名长度：" + roomLength);
+        }
+        checkFrame(payload, payload.position() + roomLength);
+        if (origin == nodeId || !firstSeen(origin, seq)) {
+            return null;
+        }
+        ByteBuffer roomBytes = payload.duplicate();
+        roomBytes.limit(roomBytes.position() + roomLength);
+        String room = StandardCharsets.UTF_8.decode(roomBytes).toString();
+        payload.position(payload.position() + roomLength);
+        //payload是读缓冲的视图，拷出来才能排进发送队列
+        PooledBuffer frame = pool.allocate(payload.remaining());
+        frame.buffer().put(payload).flip();
+        return new Relay(room, frame);
+    }
+
+    //和客户端发来的帧一样检查：正好一个帧，不带文件和压缩标志，不超过客户端的帧长度上限
+    private static void checkFrame(ByteBuffer payload, int start) throws IOException {
+        int remaining = payload.limit() - start;
+        if (remaining < FrameEncoder.HEADER_LENGTH) {
+            throw new IOException("非法转发的消息帧长度：" + remaining);
+        }
+        int header = payload.getInt(start);
+        if ((header & FrameEncoder.FLAGS) != 0) {
+            throw new IOException("非法转发的消息帧头：" + Integer.toHexString(header));
+        }
+        if (header > FrameDecoder.DEFAULT_MAX_FRAME_LENGTH || FrameEncoder.HEADER_LENGTH + header != remaining) {
+            throw new IOException("非法转发的消息帧长度：" + header);
+        }
+    }
+
+    private boolean firstSeen(long origin, long seq) {
+        AtomicLong last = lastSeen.computeIfAbsent(origin, k -> new AtomicLong());
+        return last.getAndAccumulate(seq, Math::max) < seq;
+    }
+
+    /**
+     * 别的节点转发过来的一条消息
+     */
+    public static class Relay {
+        private final String room;
+        private final PooledBuffer frame;
+
+        Relay(String room, PooledBuffer frame) {
+            this.room = room;
+            this.frame = frame;
+        }
+
+        public String room() {
+            return room;
+        }
+
+        /**
+         * 原样的消息帧（含长度头），读模式，交给调用者release
+         */
+        public PooledBuffer frame() {
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package NIO.server;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.Outbound;
+import NIO.codec.FrameDecoder;
+import common.RoomIndex;
+import common.limit.RateLimiter;
+import common.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个客户端连接（会话），连接建立时创建，作为SelectionKey的attachment
+ * 用服务器分配的唯一id标识，名字只拼一次；用户名默认是id，可以用/nick修改
+ * 保存解码半包、正在上传的文件和待发送队列
+ * 入队不直接写，reactor每轮结束时把本轮入队的帧合并成一次gathering write，写不完的等OP_WRITE
+ * 只能在所属reactor的线程里调用，暂停/恢复别的连接的读取会投递到对方的reactor
+ */
+public class Connection {
+    //BLOCK_SENDER只是软上限：系统消息、转发和历史回放没有可以暂停的发送者，
+    //已经读进来的消息也照样入队，队列到了这个倍数就按DISCONNECT处理
+    private static final int HARD_LIMIT_FACTOR = 2;
+    private final long id;
+    private String nick;
+    private String name;
+    private final Reactor reactor;
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final FrameDecoder decoder;
+    private final ServerMetrics metrics;
+    //待发送的帧或文件，队头可能已经写了一部分，写完或丢弃时release
+    private final Deque<Outbound> outbound = new ArrayDeque<>();
+    private final int maxQueuedMessages;
+    private final SlowClientPolicy policy;
+    //因为本连接队列满而被暂停读取的发送者
+    private final List<Connection> blockedSenders = new ArrayList<>();
+    //被几个慢客户端暂停了，只在本连接的reactor线程修改
+    private int pausedBy;
+    //当前所在房间
+    private String room = RoomIndex.DEFAULT_ROOM;
+    //正在接收的文件，没有时为null
+    private FileUpload upload;
+    //已经在reactor的待刷新列表里
+    private boolean dirty;
+    //队列从空变成非空的时间，配置了flush延迟时用
+    private long oldestQueuedAt;
+    //最后一次收到数据或者对端确认了我们发的数据的时间，空闲检测用
+    private long lastActiveAt = System.nanoTime();
+    //时间轮上的空闲检测，没开时为null
+    private TimerWheel.Timeout idleCheck;
+    //集群里的节点之间的链路，不是客户端，收到的是转发帧
+    private final boolean peer;
+    //本节点连出去的链路，断开之后要重连；别的节点连进来的为null
+    private PeerLink peerLink;
+    //限速，没配置时为null；超限被暂停读取时throttled为true
+    private RateLimiter rateLimiter;
+    private boolean throttled;
+    //用/compress开启之后，超过阈值的消息压缩之后发给它
+    private boolean compression;
+
+    public Connection(long id, Reactor reactor, SelectionKey key, BufferPool pool,
+                      int maxQueuedMessages, SlowClientPolicy policy, boolean peer) {
+        this.id = id;
+        this.peer = peer;
+        //转发帧里包着一整个消息帧，上限放宽一倍
+        this.decoder = new FrameDecoder(pool, peer ? 2 * FrameDecoder.DEFAULT_MAX_FRAME_LENGTH
+                : FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        //构造器里不调用可以被覆盖的setNick
+        this.nick = String.valueOf(id);
+        this.name = displayName(nick);
+        this.reactor = reactor;
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.policy = policy;
+        this.metrics = reactor.metrics();
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public String nick() {
+        return nick;
+    }
+
+    public void setNick(String nick) {
+        this.nick = nick;
+        this.name = displayName(nick);
+    }
+
+    private static String displayName(String nick) {
+        return "客户端[" + nick + "]";
+    }
+
+    public boolean isPeer() {
+        return peer;
+    }
+
+    //节点之间的链路用对端地址命名
+    void setPeerName(String address) {
+        this.name = "节点[" + address + "]";
+    }
+
+    RateLimiter rateLimiter() {
+        return rateLimiter;
+    }
+
+    void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    boolean isThrottled() {
+        return throttled;
+    }
+
+    /**
+     * 超过限速时暂停读取，nanos之后由时间轮恢复
+     */
+    void throttle(long nanos) {
+        if (throttled) {
+            return;
+        }
+        throttled = true;
+        pauseReading();
+        reactor.timers().schedule(() -> {
+            throttled = false;
+            resumeReading();
+        }, nanos, TimeUnit.NANOSECONDS);
+    }
+
+    boolean isCompression() {
+        return compression;
+    }
+
+    void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    PeerLink peerLink() {
+        return peerLink;
+    }
+
+    void setPeerLink(PeerLink peerLink) {
+        this.peerLink = peerLink;
+    }
+
+    public Reactor reactor() {
+        return reactor;
+    }
+
+    public SelectionKey key() {
+        return key;
+    }
+
+    public SocketChannel channel() {
+        return channel;
+    }
+
+    public FrameDecoder decoder() {
+        return decoder;
+    }
+
+    public String room() {
+        return room;
+    }
+
+    public void setRoom(String room) {
+        this.room = room;
+    }
+
+    public int queuedMessages() {
+        return outbound.size();
+    }
+
+    FileUpload upload() {
+        return upload;
+    }
+
+    void startUpload(FileUpload upload) {
+        this.upload = upload;
+    }
+
+    FileUpload finishUpload() {
+        FileUpload finished = upload;
+        upload = null;
+        return finished;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void setDirty(boolean dirty) {
+        this.dirty = dirty;
+    }
+
+    long oldestQueuedAt() {
+        return oldestQueuedAt;
+    }
+
+    long lastActiveAt() {
+        return lastActiveAt;
+    }
+
+    //读到了数据，或者发送缓冲满了之后又可写，说明对端还活着
+    //只是写进发送缓冲不算，半开的连接也能写进去
+    void touch() {
+        lastActiveAt = System.nanoTime();
+    }
+
+    void setIdleCheck(TimerWheel.Timeout idleCheck) {
+        this.idleCheck = idleCheck;
+    }
+
+    //被慢客户端暂停或者被限速了，这期间收不到它的/pong
+    boolean isReadPaused() {
+        return pausedBy > 0;
+    }
+
+    boolean isWaitingWritable() {
+        return (key.interestOps() & SelectionKey.OP_WRITE) != 0;
+    }
+
+    /**
+     * 把一帧或一个文件放进发送队列，由reactor在本轮结束时合并写出
+     * frame交给本连接负责release，不管是否成功入队
+     * @param sender 发送者，BLOCK_SENDER策略下会被暂停读取，可以为null
+     * @return false表示按DISCONNECT策略，或者BLOCK_SENDER超过硬上限，应该断开本连接
+     */
+    public boolean enqueue(Outbound frame, Connection sender) {
+        metrics.messagesOut.increment();
+        reactor.queueDepth().record(outbound.size());
+        if (outbound.size() >= maxQueuedMessages) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    if (!dropOldest()) {
+                        //队列里只有写了一半的队头，丢新来的这帧
+                        frame.release();
+                        return true;
+                    }
+                    break;
+                case DISCONNECT:
+                    frame.release();
+                    return false;
+                case BLOCK_SENDER:
+                    if (outbound.size() >= HARD_LIMIT_FACTOR * maxQueuedMessages) {
+                        frame.release();
+                        return false;
+                    }
+                    if (sender != null && sender != this && !blockedSenders.contains(sender)) {
+                        blockedSenders.add(sender);
+                        //发送者可能在别的reactor上
+                        sender.reactor.runInLoop(sender::pauseReading);
+                    }
+                    break;
+            }
+        }
+        if (outbound.isEmpty()) {
+            oldestQueuedAt = System.nanoTime();
+        }
+        outbound.addLast(frame);
+        reactor.markDirty(this);
+        return true;
+    }
+
+    /**
+     * reactor每轮结束或者OP_WRITE就绪时调用，写到socket缓冲满或者队列空为止
+     * 队头连续的帧合并成一次write(ByteBuffer[])，最多writeBatchSize个；文件单独用transferTo
+     */
+    public void flush() throws IOException {
+        ByteBuffer[] buffers = reactor.gatherBuffers();
+        Outbound head;
+        while ((head = outbound.peekFirst()) != null) {
+            boolean full;
+            if (head.nioBuffer() == null) {
+                metrics.bytesOut.add(head.writeTo(channel));
+                metrics.writeCalls.increment();
+                //socket发送缓冲满了，或者文件这一块写完了
+                full = head.hasRemaining();
+                if (!full) {
+                    outbound.pollFirst().release();
+                }
+            } else {
+                int count = 0;
+                for (Outbound frame : outbound) {
+                    ByteBuffer buffer = frame.nioBuffer();
+                    if (buffer == null || count == buffers.length) {
+                        break;
+                    }
+                    buffers[count++] = buffer;
+                }
+                metrics.bytesOut.add(channel.write(buffers, 0, count));
+                metrics.writeCalls.increment();
+                full = buffers[count - 1].hasRemaining();
+                //不留着已经写完的帧的引用
+                Arrays.fill(buffers, 0, count, null);
+                Outbound frame;
+                while ((frame = outbound.peekFirst()) != null && frame.nioBuffer() != null && !frame.hasRemaining()) {
+                    outbound.pollFirst().release();
+                }
+            }
+            if (outbound.size() <= maxQueuedMessages / 2) {
+                resumeBlockedSenders();
+            }
+            if (full) {
+                //等下一次OP_WRITE
+                if (!isWaitingWritable()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+        }
+        if (isWaitingWritable()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+        resumeBlockedSenders();
+    }
+
+    /**
+     * 连接断开时调用，丢弃队列并放开被它暂停的发送者
+     */
+    public void release() {
+        Outbound frame;
+        while ((frame = outbound.pollFirst()) != null) {
+            frame.release();
+        }
+        decoder.release();
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        if (idleCheck != null) {
+            idleCheck.cancel();
+            idleCheck = null;
+        }
+        resumeBlockedSenders();
+    }
+
+    /**
+     * 丢掉最早的一帧，队头写了一半就不能丢，否则对端会收到残帧，改丢第二帧
+     * @return false表示队列里只有写了一半的队头，什么也没丢
+     */
+    private boolean dropOldest() {
+        Outbound head = outbound.pollFirst();
+        if (!head.isStarted()) {
+            head.release();
+            return true;
+        }
+        Outbound next = outbound.pollFirst();
+        outbound.addFirst(head);
+        if (next == null) {
+            return false;
+        }
+        next.release();
+        return true;
+    }
+
+    private void pauseReading() {
+        if (pausedBy++ == 0 && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private void resumeReading() {
+        if (--pausedBy == 0 && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void resumeBlockedSenders() {
+        if (blockedSenders.isEmpty()) {
+            return;
+        }
+        for (Connection sender : blockedSenders) {
+            sender.reactor.runInLoop(sender::resumeReading);
+        }
+        blockedSenders.clear();
+    }
+}
@@ -0,0 +1,93 @@
+package NIO.server;
+
+import NIO.buffer.FileRegion;
+import NIO.codec.FileHeader;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 正在接收的文件，内容先写进临时文件，收完之后共享给房间里的人发送
+ */
+class FileUpload {
+    //常见文件系统的文件名上限
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private final String name;
+    private final long size;
+    private final Path path;
+    private final FileChannel channel;
+
+    FileUpload(Path dir, FileHeader header) throws IOException {
+        this.name = fileName(header.name());
+        this.size = header.size();
+        this.path = Files.createTempFile(dir, "upload-", ".tmp");
+        this.channel = FileChannel.open(path, StandardOpenOption.WRITE);
+    }
+
+    String name() {
+        return name;
+    }
+
+    long size() {
+        return size;
+    }
+
+    FileChannel channel() {
+        return channel;
+    }
+
+    /**
+     * 直接从socket收一块写进文件
+     * @return 收到的字节数，没数据和对端关闭都返回0
+     */
+    long transferFrom(ReadableByteChannel src, long max) throws IOException {
+        long position = channel.position();
+        long n = channel.transferFrom(src, position, max);
+        //transferFrom不移动文件位置，和transferRaw的顺序写保持一致
+        channel.position(position + n);
+        return n;
+    }
+
+    /**
+     * 收完了，关掉写通道，重新以只读打开共享给接收者
+     */
+    FileRegion.SharedFile complete() throws IOException {
+        channel.close();
+        return new FileRegion.SharedFile(path);
+    }
+
+    /**
+     * 没收完连接就断了
+     */
+    void abort() {
+        try {
+            channel.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 名字会原样转发给房间里的每个人，接收端拿它在下载目录里建文件，
+     * 空名字、.和..、带目录分隔符或者控制字符的一律拒收
+     */
+    private static String fileName(String name) throws IOException {
+        //文件帧头要原样转发，名字太长的编码之后可能超过帧长度上限
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH || ".".equals(name) || "..".equals(name)) {
+            throw new IOException("非法文件名");
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '/' || c == '\\' || Character.isISOControl(c)) {
+                throw new IOException("非法文件名");
+            }
+        }
+        return name;
+    }
+}
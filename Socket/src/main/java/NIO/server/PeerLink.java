@@ -0,0 +1,34 @@
+package NIO.server;
+
+import java.net.InetSocketAddress;
+
+/**
+ * 本节点连向一个peer的链路，只在boss reactor线程里访问
+ * 断开之后按固定间隔重连，没连上的时候要转发的消息直接丢掉
+ */
+class PeerLink {
+    private final InetSocketAddress address;
+    //连上之后才有，断开时为null
+    private Connection connection;
+
+    PeerLink(InetSocketAddress address) {
+        this.address = address;
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    Connection connection() {
+        return connection;
+    }
+
+    void setConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public String toString() {
+        return "节点[" + address.getHostString() + ":" + address.getPort() + "]";
+    }
+}
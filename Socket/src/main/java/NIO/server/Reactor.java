@@ -0,0 +1,279 @@
+package NIO.server;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+import NIO.codec.FrameCompressor;
+import NIO.codec.TextDecoder;
+import common.RoomIndex;
+import common.metrics.Histogram;
+import common.metrics.ServerMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个selector加一个线程
+ * 单reactor模式下同时负责accept和读写；多reactor模式下boss只accept，
+ * 连接轮流交给worker。连接的状态只在所属reactor的线程里访问，
+ * 其他线程要操作它必须通过execute投递任务
+ */
+public class Reactor implements Runnable {
+    private static final int TICK_MILLIS = 100;
+    private static final int TICKS_PER_WHEEL = 512;
+
+    private final String name;
+    private final ChatServer server;
+    private final Selector selector;
+    //其他线程投递过来的任务，每轮select之后执行
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    //挂在本reactor上的连接
+    private final Set<Connection> connections = new HashSet<>();
+    //本reactor上连接的房间索引，别的线程只读size
+    private final RoomIndex<Connection> rooms = new RoomIndex<>();
+    //从client读取，本线程共用，堆外的read时不用再拷一次
+    private final PooledBuffer rBuffer;
+    //一次read拆出来的帧
+    private final List<ByteBuffer> frames = new ArrayList<>();
+    //帧解码成字符、拼转发消息，本线程共用
+    private final TextDecoder textDecoder;
+    private final StringBuilder text = new StringBuilder();
+    //广播在发送者的reactor里压缩一次，同一个reactor上的广播共用一个Deflater
+    private final FrameCompressor compressor;
+    //本轮有新消息入队、等着刷新的连接
+    private final List<Connection> dirty = new ArrayList<>();
+    //gathering write用的数组，本线程的连接共用
+    private final ByteBuffer[] gatherBuffers;
+    //队列里的消息最多攒多久再写，0表示每轮都写
+    private final long flushDelayNanos;
+    //心跳和空闲检测之类的定时任务
+    private final TimerWheel timers = new TimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, TICKS_PER_WHEEL);
+    private final ServerMetrics metrics;
+    //本线程自己的直方图，只有本线程写
+    private final Histogram loopTime;
+    private final Histogram fanOutLatency;
+    private final Histogram queueDepth;
+    private volatile Thread thread;
+
+    public Reactor(String name, ChatServer server, BufferPool pool, int bufferSize,
+                   int writeBatchSize, long flushDelayNanos) throws IOException {
+        this.name = name;
+        this.server = server;
+        this.selector = Selector.open();
+        this.rBuffer = pool.allocate(bufferSize);
+        this.gatherBuffers = new ByteBuffer[writeBatchSize];
+        this.textDecoder = new TextDecoder(server.charset());
+        this.compressor = new FrameCompressor(pool);
+        this.flushDelayNanos = flushDelayNanos;
+        this.metrics = server.metrics();
+        this.loopTime = metrics.loopTime.newShard();
+        this.fanOutLatency = metrics.fanOutLatency.newShard();
+        this.queueDepth = metrics.queueDepth.newShard();
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            long timeout = 0;
+            while (true) {
+                //阻塞式，注册的监听事件发生、有新任务、有攒着的消息到期或者定时任务到期才返回
+                if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.select();
+                }
+                long start = System.nanoTime();
+                Set<SelectionKey> selectionKeys = selector.selectedKeys();
+                for (SelectionKey key : selectionKeys) {
+                    //前面的事件可能已经断开了这个连接
+                    if (key.isValid()) {
+                        server.handles(key);
+                    }
+                }
+                selectionKeys.clear();
+                runTasks();
+                //定时任务先跑，它们入队的心跳在本轮一起写出
+                long timerTimeout = timers.advance(System.nanoTime());
+                timeout = earliest(flushDirty(), timerTimeout);
+                loopTime.record(System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (ClosedSelectorException e) {
+            //服务器关闭
+        } finally {
+            for (Connection connection : connections) {
+                connection.release();
+                server.close(connection.channel());
+            }
+            connections.clear();
+            server.close(selector);
+            rBuffer.release();
+            compressor.end();
+        }
+    }
+
+    /**
+     * 投递任务到本reactor线程执行，任何线程都可以调用
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * 已经在本reactor线程就直接执行，否则投递
+     */
+    public void runInLoop(Runnable task) {
+        if (inEventLoop()) {
+            task.run();
+        } else {
+            execute(task);
+        }
+    }
+
+    public boolean inEventLoop() {
+        return thread == Thread.currentThread();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 连接有新消息入队时调用，本轮结束时统一写，同一轮扇出到它的多条消息合并成一次write
+     */
+    void markDirty(Connection connection) {
+        if (!connection.isDirty()) {
+            connection.setDirty(true);
+            dirty.add(connection);
+        }
+    }
+
+    /**
+     * 写出本轮入队的消息；配置了flush延迟时，没攒够一批又没到期的留到下一轮
+     * @return 下一轮select最多等多少毫秒，0表示一直等
+     */
+    private long flushDirty() {
+        if (dirty.isEmpty()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long nextDeadline = Long.MAX_VALUE;
+        int kept = 0;
+        for (int i = 0; i < dirty.size(); i++) {
+            Connection connection = dirty.get(i);
+            //已经断开，或者在等OP_WRITE，由OP_WRITE事件接着写
+            if (!connection.key().isValid() || connection.isWaitingWritable()) {
+                connection.setDirty(false);
+                continue;
+            }
+            long deadline = connection.oldestQueuedAt() + flushDelayNanos;
+            if (flushDelayNanos > 0 && connection.queuedMessages() < gatherBuffers.length && deadline - now > 0) {
+                nextDeadline = Math.min(nextDeadline, deadline);
+                dirty.set(kept++, connection);
+                continue;
+            }
+            connection.setDirty(false);
+            server.flush(connection);
+        }
+        dirty.subList(kept, dirty.size()).clear();
+        if (nextDeadline == Long.MAX_VALUE) {
+            return 0;
+        }
+        //select(0)是一直等，至少等1毫秒
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDeadline - now));
+    }
+
+    //两个select超时取小的，0表示一直等
+    private static long earliest(long a, long b) {
+        if (a == 0 || b == 0) {
+            return a + b;
+        }
+        return Math.min(a, b);
+    }
+
+    public void shutdown() {
+        server.close(selector);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public Selector selector() {
+        return selector;
+    }
+
+    Set<Connection> connections() {
+        return connections;
+    }
+
+    RoomIndex<Connection> rooms() {
+        return rooms;
+    }
+
+    ServerMetrics metrics() {
+        return metrics;
+    }
+
+    Histogram fanOutLatency() {
+        return fanOutLatency;
+    }
+
+    Histogram queueDepth() {
+        return queueDepth;
+    }
+
+    ByteBuffer readBuffer() {
+        return rBuffer.buffer();
+    }
+
+    List<ByteBuffer> frames() {
+        return frames;
+    }
+
+    /**
+     * 只能在本reactor线程里用
+     */
+    TimerWheel timers() {
+        return timers;
+    }
+
+    TextDecoder textDecoder() {
+        return textDecoder;
+    }
+
+    FrameCompressor compressor() {
+        return compressor;
+    }
+
+    /**
+     * 清空后返回，用来拼要编码的消息
+     */
+    StringBuilder text() {
+        text.setLength(0);
+        return text;
+    }
+
+    ByteBuffer[] gatherBuffers() {
+        return gatherBuffers;
+    }
+}
@@ -0,0 +1,14 @@
+package NIO.server;
+
+/**
+ * 客户端接收太慢、发送队列满了之后的处理方式
+ */
+public enum SlowClientPolicy {
+    //丢掉队列里最早的消息
+    DROP_OLDEST,
+    //直接断开这个慢客户端
+    DISCONNECT,
+    //暂停读取发送者，等慢客户端的队列消化掉一半再恢复
+    //只是软上限：没有发送者的系统消息、转发和历史回放照样入队，队列到了上限的两倍就断开
+    BLOCK_SENDER
+}
@@ -0,0 +1,162 @@
+package NIO.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 哈希时间轮，只在所属reactor的线程里使用，不加锁
+ * 每个槽是一个双向链表，添加、取消都是O(1)；每个tick只看一个槽，
+ * 超过一圈的定时任务靠rounds计数，不用扫描所有连接
+ * 精度是一个tick，心跳和空闲检测这种秒级的定时够用
+ */
+public class TimerWheel {
+    private final long tickNanos;
+    private final Timeout[] wheel;
+    private final int mask;
+    //下一个要处理的tick开始的时间
+    private long nextTickAt;
+    private long tick;
+    private int size;
+
+    /**
+     * @param ticksPerWheel 槽数，向上取成2的幂
+     */
+    public TimerWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = unit.toNanos(tickDuration);
+        int n = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.wheel = new Timeout[n];
+        this.mask = n - 1;
+        this.nextTickAt = System.nanoTime() + tickNanos;
+    }
+
+    /**
+     * delay之后在reactor线程里执行task，实际执行时间会晚最多一个tick
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (size == 0) {
+            //轮空着的时候reactor不定时醒来，tick可能停在很久以前，不追上的话会按旧的tick放槽，提前执行
+            skipIdleTicks(System.nanoTime());
+        }
+        //当前tick到nextTickAt结束，放在ticks个tick之后的槽里，不会提前执行
+        long ticks = Math.max(0, (unit.toNanos(delay) + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(task);
+        timeout.rounds = ticks / wheel.length;
+        timeout.bucket = (int) ((tick + ticks) & mask);
+        timeout.next = wheel[timeout.bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        wheel[timeout.bucket] = timeout;
+        size++;
+        return timeout;
+    }
+
+    /**
+     * 处理已经到期的tick，到期的任务在这里执行
+     * @return 离下一个tick还有多少毫秒，没有定时任务时返回0表示不用定时唤醒
+     */
+    public long advance(long now) {
+        if (size == 0) {
+            skipIdleTicks(now);
+        }
+        while (now - nextTickAt >= 0) {
+            Timeout expired = detachExpired((int) (tick & mask));
+            //先进到下一个tick，任务里再schedule的不会落进刚处理完的槽
+            tick++;
+            nextTickAt += tickNanos;
+            run(expired);
+        }
+        if (size == 0) {
+            return 0;
+        }
+        //select(0)是一直等，至少等1毫秒
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTickAt - now));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //轮是空的，直接跳过空转的tick，跳完之后now落在当前tick里
+    private void skipIdleTicks(long now) {
+        if (now - nextTickAt >= 0) {
+            long skipped = (now - nextTickAt) / tickNanos + 1;
+            tick += skipped;
+            nextTickAt += skipped * tickNanos;
+        }
+    }
+
+    //把槽里到期的摘下来串成一条链，还没到期的圈数减一
+    private Timeout detachExpired(int bucket) {
+        Timeout expired = null;
+        Timeout timeout = wheel[bucket];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                remove(timeout);
+                timeout.next = expired;
+                expired = timeout;
+            }
+            timeout = next;
+        }
+        return expired;
+    }
+
+    //任务可能取消同一批里的其他任务，取消了的跳过
+    private void run(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.next = null;
+            if (!timeout.cancelled) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void remove(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            wheel[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+    }
+
+    /**
+     * 一个定时任务，执行过或者取消之后不再在轮上
+     */
+    public class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private int bucket;
+        private Timeout prev;
+        private Timeout next;
+        private boolean cancelled;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        /**
+         * 只能在reactor线程里调用，已经执行过的调用也没关系
+         */
+        public void cancel() {
+            cancelled = true;
+            if (bucket >= 0) {
+                remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package NIO.store;
+
+import NIO.buffer.Outbound;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 日志映射区的一段，可能包含多条完整的帧，作为一项放进发送队列
+ * 映射区不是从池里借的，不用归还
+ */
+public class LogSlice implements Outbound {
+    private final ByteBuffer buffer;
+
+    public LogSlice(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public long writeTo(WritableByteChannel channel) throws IOException {
+        return channel.write(buffer);
+    }
+
+    @Override
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    @Override
+    public ByteBuffer nioBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public boolean isStarted() {
+        return buffer.position() > 0;
+    }
+
+    @Override
+    public LogSlice retainedDuplicate() {
+        return new LogSlice(buffer.duplicate());
+    }
+
+    @Override
+    public void release() {
+    }
+}
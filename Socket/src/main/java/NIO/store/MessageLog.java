@@ -0,0 +1,247 @@
+package NIO.store;
+
+import NIO.codec.FrameEncoder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * 一个房间的消息日志，只追加
+ * 按段存储，每段一个文件，整段用MappedByteBuffer映射，写满了换下一段，超过段数上限删最老的段
+ * 每条记录就是编码好的帧（长度头 + 内容），回放时直接把映射区的切片发出去，不用重新编码，也不占堆
+ * 消息位置（offset）从0开始连续编号，每段在内存里保存段内每条记录的起始位置，重启时扫描段文件重建
+ * 追加和读取都加锁，多个reactor可以同时写同一个房间
+ * close之后追加和读取抛ClosedChannelException；已经读出去的切片还能用，映射等GC解除
+ * 超过段数上限的老段先从列表里拿掉再删文件，文件还被映射着删不掉的（Windows）留到下次换段再删；
+ * Linux上文件能删，但磁盘空间要等映射解除才释放
+ */
+public class MessageLog {
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    //从老到新
+    private final List<Segment> segments = new ArrayList<>();
+    //要删但是还没删掉的老段
+    private final List<Path> pendingDeletes = new ArrayList<>();
+    private boolean closed;
+
+    public MessageLog(Path dir, int segmentSize, int maxSegments) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(dir);
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        baseOffsets.sort(null);
+        //上次没删掉的老段不再映射，直接删
+        int stale = Math.max(0, baseOffsets.size() - maxSegments);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            if (i < stale) {
+                pendingDeletes.add(segmentPath(dir, baseOffsets.get(i)));
+            } else {
+                segments.add(new Segment(dir, baseOffsets.get(i), segmentSize));
+            }
+        }
+        deletePending();
+        if (segments.isEmpty()) {
+            segments.add(new Segment(dir, 0, segmentSize));
+        }
+    }
+
+    /**
+     * 追加一帧
+     * @param frame 读模式的完整帧，position不变
+     * @return 这条消息的位置
+     */
+    public synchronized long append(ByteBuffer frame) throws IOException {
+        ensureOpen();
+        if (frame.remaining() > segmentSize) {
+            throw new IOException("消息超过段大小：" + frame.remaining());
+        }
+        Segment last = segments.get(segments.size() - 1);
+        if (!last.hasRoom(frame.remaining())) {
+            last = roll(last.nextOffset());
+        }
+        return last.append(frame);
+    }
+
+    /**
+     * 下一条消息的位置，也就是目前的消息总数
+     */
+    public synchronized long nextOffset() throws ClosedChannelException {
+        ensureOpen();
+        return segments.get(segments.size() - 1).nextOffset();
+    }
+
+    /**
+     * 还保留着的最老的位置
+     */
+    public synchronized long firstOffset() throws ClosedChannelException {
+        ensureOpen();
+        return segments.get(0).baseOffset;
+    }
+
+    /**
+     * 读出从offset开始的所有消息，每段一个只读切片，切片直接指向映射区
+     * offset比保留的最老位置还早时从最老的开始
+     * @return 读到的最后一条的下一个位置
+     */
+    public synchronized long read(long offset, List<ByteBuffer> out) throws ClosedChannelException {
+        ensureOpen();
+        for (Segment segment : segments) {
+            if (offset < segment.nextOffset()) {
+                ByteBuffer slice = segment.slice(Math.max(offset, segment.baseOffset));
+                if (slice.hasRemaining()) {
+                    out.add(slice);
+                }
+            }
+        }
+        return nextOffset();
+    }
+
+    /**
+     * 读出最近的count条消息
+     * @return 读到的最后一条的下一个位置
+     */
+    public synchronized long readLast(int count, List<ByteBuffer> out) throws ClosedChannelException {
+        return read(nextOffset() - count, out);
+    }
+
+    /**
+     * 映射区的内容刷到磁盘
+     */
+    public synchronized void flush() {
+        for (Segment segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * 刷盘并放掉所有段，重复调用没关系
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        segments.clear();
+        deletePending();
+        closed = true;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private Segment roll(long baseOffset) throws IOException {
+        segments.get(segments.size() - 1).force();
+        Segment segment = new Segment(dir, baseOffset, segmentSize);
+        segments.add(segment);
+        while (segments.size() > maxSegments) {
+            //先放掉段对映射的引用再删文件；还在发送队列里的切片不受影响，映射要等它们都发完、GC之后才会解除
+            pendingDeletes.add(segments.remove(0).path);
+        }
+        deletePending();
+        return segment;
+    }
+
+    //删不掉的留着下次再试，不影响追加
+    private void deletePending() {
+        Iterator<Path> paths = pendingDeletes.iterator();
+        while (paths.hasNext()) {
+            try {
+                Files.deleteIfExists(paths.next());
+                paths.remove();
+            } catch (IOException e) {
+                //Windows上文件还被映射着
+            }
+        }
+    }
+
+    private static Path segmentPath(Path dir, long baseOffset) {
+        return dir.resolve(String.format("%020d", baseOffset) + SUFFIX);
+    }
+
+    private static class Segment {
+        private final long baseOffset;
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        //段内第i条记录的起始位置
+        private int[] positions = new int[64];
+        private int count;
+
+        Segment(Path dir, long baseOffset, int segmentSize) throws IOException {
+            this.baseOffset = baseOffset;
+            this.path = segmentPath(dir, baseOffset);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                //映射建立之后关掉channel不影响映射
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            recover();
+        }
+
+        //扫描已有的记录重建索引，映射区没写过的部分是0，长度为0就是结尾
+        private void recover() {
+            while (buffer.remaining() >= FrameEncoder.HEADER_LENGTH) {
+                int length = buffer.getInt(buffer.position());
+                if (length <= 0 || length > buffer.remaining() - FrameEncoder.HEADER_LENGTH) {
+                    break;
+                }
+                index(buffer.position());
+                buffer.position(buffer.position() + FrameEncoder.HEADER_LENGTH + length);
+            }
+        }
+
+        boolean hasRoom(int length) {
+            return buffer.remaining() >= length;
+        }
+
+        long append(ByteBuffer frame) {
+            index(buffer.position());
+            buffer.put(frame.duplicate());
+            return baseOffset + count - 1;
+        }
+
+        long nextOffset() {
+            return baseOffset + count;
+        }
+
+        //从offset到段内已写的结尾
+        ByteBuffer slice(long offset) {
+            int start = offset - baseOffset < count ? positions[(int) (offset - baseOffset)] : buffer.position();
+            return buffer.slice(start, buffer.position() - start).asReadOnlyBuffer();
+        }
+
+        void force() {
+            buffer.force();
+        }
+
+        private void index(int position) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count << 1);
+            }
+            positions[count++] = position;
+        }
+    }
+}
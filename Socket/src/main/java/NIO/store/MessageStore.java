@@ -0,0 +1,105 @@
+package NIO.store;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 每个房间一个MessageLog，所有reactor共用
+ * 第一次往房间里写消息时才创建日志，只是加入或者回放没有日志的房间不创建任何文件
+ * 同时打开的日志有上限，超过时关掉最久没用的，下次用到时和重启一样扫描段文件重新打开
+ * 房间名编码之后作为目录名，避免/和..之类的字符
+ */
+public class MessageStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+    public static final int DEFAULT_MAX_OPEN_LOGS = 64;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int maxOpenLogs;
+    //按最近使用排序，在this上同步
+    private final LinkedHashMap<String, MessageLog> logs = new LinkedHashMap<>(16, 0.75f, true);
+
+    public MessageStore(Path dir) {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, DEFAULT_MAX_OPEN_LOGS);
+    }
+
+    public MessageStore(Path dir, int segmentSize, int maxSegments, int maxOpenLogs) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.maxOpenLogs = maxOpenLogs;
+    }
+
+    /**
+     * 追加一帧，房间还没有日志时创建
+     * @param frame 读模式的完整帧，position不变
+     * @return 这条消息的位置
+     */
+    public long append(String room, ByteBuffer frame) throws IOException {
+        while (true) {
+            try {
+                return open(room, true).append(frame);
+            } catch (ClosedChannelException e) {
+                //拿到之后被别的线程换出去了，重新打开
+            }
+        }
+    }
+
+    /**
+     * 读房间的历史消息，房间没有日志时什么都不读
+     * @param offset 从这个位置开始，小于0表示最近count条
+     * @return 读到的最后一条的下一个位置
+     */
+    public long read(String room, long offset, int count, List<ByteBuffer> out) throws IOException {
+        while (true) {
+            MessageLog log = open(room, false);
+            if (log == null) {
+                return 0;
+            }
+            try {
+                return offset < 0 ? log.readLast(count, out) : log.read(offset, out);
+            } catch (ClosedChannelException e) {
+                //拿到之后被别的线程换出去了，重新打开
+            }
+        }
+    }
+
+    /**
+     * 服务器关闭时调用，把所有映射区刷到磁盘
+     */
+    public synchronized void flush() {
+        for (MessageLog log : logs.values()) {
+            log.flush();
+        }
+    }
+
+    private synchronized MessageLog open(String room, boolean create) throws IOException {
+        MessageLog log = logs.get(room);
+        if (log != null) {
+            return log;
+        }
+        Path logDir = dir.resolve("room-" + URLEncoder.encode(room, StandardCharsets.UTF_8));
+        if (!create && !Files.isDirectory(logDir)) {
+            return null;
+        }
+        log = new MessageLog(logDir, segmentSize, maxSegments);
+        logs.put(room, log);
+        if (logs.size() > maxOpenLogs) {
+            //关闭要等它正在进行的追加写完，持有它的线程之后会拿到ClosedChannelException
+            Iterator<MessageLog> eldest = logs.values().iterator();
+            eldest.next().close();
+            eldest.remove();
+        }
+        return log;
+    }
+}
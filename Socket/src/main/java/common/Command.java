@@ -0,0 +1,123 @@
+package common;
+
+/**
+ * 以/开头的聊天命令和@私聊，两种服务器共用
+ * /join 房间名   离开当前房间，加入新房间
+ * /leave        回到默认房间
+ * /room         查看当前房间
+ * /nick 名字     修改用户名，不能全是数字，纯数字是留给默认用户名（会话id）的
+ * /history [位置] 回放当前房间的历史消息，不带位置时回放最近的几条
+ * /ping /pong   心跳，服务器发/ping时客户端回/pong，客户端发/ping时服务器回/pong
+ * /compress [deflate|off] 开启/关闭压缩，开启之后服务器把超过阈值的消息压缩之后发过来
+ * @用户名 内容    私聊
+ */
+public class Command {
+    public static final String PING = "/ping";
+    public static final String PONG = "/pong";
+    public static final String COMPRESS = "/compress deflate";
+
+    public enum Type {
+        JOIN, LEAVE, ROOM, NICK, DIRECT, HISTORY, PING, PONG, COMPRESS
+    }
+
+    private final Type type;
+    private final String argument;
+    //私聊的内容
+    private final String text;
+
+    private Command(Type type, String argument) {
+        this(type, argument, "");
+    }
+
+    private Command(Type type, String argument, String text) {
+        this.type = type;
+        this.argument = argument;
+        this.text = text;
+    }
+
+    /**
+     * @return 不是命令时返回null，按普通消息转发
+     */
+    public static Command parse(String msg) {
+        if (msg == null) {
+            return null;
+        }
+        if (msg.startsWith("@")) {
+            return parseDirect(msg);
+        }
+        if (!msg.startsWith("/")) {
+            return null;
+        }
+        int space = msg.indexOf(' ');
+        String name = space < 0 ? msg.substring(1) : msg.substring(1, space);
+        String argument = space < 0 ? "" : msg.substring(space + 1).trim();
+        switch (name) {
+            case "join":
+                return new Command(Type.JOIN, argument);
+            case "leave":
+                return new Command(Type.LEAVE, argument);
+            case "room":
+                return new Command(Type.ROOM, argument);
+            case "nick":
+                return new Command(Type.NICK, argument);
+            case "history":
+                return new Command(Type.HISTORY, argument);
+            case "ping":
+                return new Command(Type.PING, argument);
+            case "pong":
+                return new Command(Type.PONG, argument);
+            case "compress":
+                return new Command(Type.COMPRESS, argument);
+            default:
+                return null;
+        }
+    }
+
+    //用户名不能为空、不能有空白，也不能太长
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > 32) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.isWhitespace(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 可以用/nick改成的名字：纯数字的是别的连接的默认用户名，改成它会在用户表里顶掉那个连接
+     */
+    public static boolean isValidNick(String name) {
+        if (!isValidName(name)) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Command parseDirect(String msg) {
+        int space = msg.indexOf(' ');
+        if (space < 0) {
+            return new Command(Type.DIRECT, msg.substring(1));
+        }
+        return new Command(Type.DIRECT, msg.substring(1, space), msg.substring(space + 1).trim());
+    }
+
+    public Type type() {
+        return type;
+    }
+
+    public String argument() {
+        return argument;
+    }
+
+    public String text() {
+        return text;
+    }
+}
@@ -0,0 +1,43 @@
+package common;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 房间 -> 成员集合的索引，转发只需要遍历同一个房间的成员
+ * 空房间会被移除
+ */
+public class RoomIndex<T> {
+    public static final String DEFAULT_ROOM = "lobby";
+
+    private final ConcurrentHashMap<String, Set<T>> rooms = new ConcurrentHashMap<>();
+
+    public void join(String room, T member) {
+        //在compute里加成员，避免和leave删除空房间冲突
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(member);
+            return members;
+        });
+    }
+
+    public void leave(String room, T member) {
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(member);
+            return members.isEmpty() ? null : members;
+        });
+    }
+
+    public Set<T> members(String room) {
+        Set<T> members = rooms.get(room);
+        return members == null ? Collections.<T>emptySet() : members;
+    }
+
+    public int size(String room) {
+        Set<T> members = rooms.get(room);
+        return members == null ? 0 : members.size();
+    }
+}
@@ -0,0 +1,356 @@
+package common.config;
+
+import common.limit.FloodPolicy;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 三种服务器共用的启动配置，每项都有类型和默认值，默认值和原来写死的一样
+ * 先读--config=文件（properties格式），再用命令行的--key=value覆盖，键名就是下面的字段名
+ * 也认原来的位置参数，每个位置对应哪个键由各服务器的main决定
+ * 不认识的键、格式不对的值直接报错，不悄悄用默认值
+ * 某个服务器用不到的项（比如BIO的writeBatchSize）忽略
+ */
+public class ServerConfig {
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final int DEFAULT_READ_BUFFER_SIZE = 1024;
+    private static final int DEFAULT_POOL_BYTES_PER_CLASS = 4 * 1024 * 1024;
+
+    //监听端口、纯文本统计端口（0表示不开）、accept队列长度
+    private int port;
+    private int statsPort;
+    private int backlog = DEFAULT_BACKLOG;
+    //客户端连接的socket选项，缓冲大小为0表示用系统默认
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    //SO_REUSEPORT，同一台机器上多个进程监听同一个端口；配置了handoffFile时总是打开
+    private boolean reusePort;
+    private Path handoffFile;
+
+    //NIO的worker数（0表示单reactor）、AIO的group线程数
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    //BIO读线程池大小，virtualThreads为true时不用
+    private int bioThreads = 10;
+    private boolean virtualThreads;
+    //每次read的缓冲大小，池里每个大小等级最多留多少字节
+    private int readBufferSize = DEFAULT_READ_BUFFER_SIZE;
+    private int poolBytesPerClass = DEFAULT_POOL_BYTES_PER_CLASS;
+
+    //发送队列
+    private int maxQueuedMessages = 1024;
+    private String slowClientPolicy = "DROP_OLDEST";
+    private int writeBatchSize = 64;
+    private long flushDelayMillis;
+    private int idleTimeoutSeconds = 60;
+    private int drainTimeoutSeconds = 10;
+
+    //限速，都为0表示不限
+    private double messagesPerSecond;
+    private int messageBurst;
+    private double bytesPerSecond;
+    private int byteBurst;
+    private FloodPolicy floodPolicy = FloodPolicy.DELAY;
+
+    //历史消息目录，null表示用服务器自己的默认目录，空字符串表示不保存
+    private String logDir;
+    private int historySize = 20;
+    private long maxFileSize = 100 * 1024 * 1024;
+    //帧超过这么多字节才压缩，0表示不支持压缩
+    private int compressionThreshold = 1024;
+
+    //集群端口（0表示不接收）和其他节点的集群地址
+    private int clusterPort;
+    private List<InetSocketAddress> peers = Collections.emptyList();
+
+    public ServerConfig(int defaultPort) {
+        this.port = defaultPort;
+    }
+
+    /**
+     * @param positional 没有--前缀的参数依次对应的键
+     * @throws IllegalArgumentException 参数格式不对、键不认识或者值不对
+     */
+    public static ServerConfig parse(String[] args, int defaultPort, String... positional) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        int position = 0;
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("参数格式：--key=value，不认识：" + arg);
+                }
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else if (position < positional.length) {
+                options.put(positional[position++], arg);
+            } else {
+                throw new IllegalArgumentException("多余的参数：" + arg);
+            }
+        }
+        ServerConfig config = new ServerConfig(defaultPort);
+        //文件先读，命令行后读，命令行的优先
+        String file = options.remove("config");
+        if (file != null) {
+            config.load(Paths.get(file));
+        }
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            config.set(option.getKey(), option.getValue());
+        }
+        return config;
+    }
+
+    /**
+     * 读properties文件，文件里的项覆盖当前的值
+     */
+    public void load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        for (String key : properties.stringPropertyNames()) {
+            set(key, properties.getProperty(key));
+        }
+    }
+
+    /**
+     * 按键名设置一项
+     * @throws IllegalArgumentException 键不认识或者值不对
+     */
+    public void set(String key, String value) {
+        boolean known;
+        try {
+            known = apply(key, value.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("配置项" + key + "的值不对：" + value, e);
+        }
+        if (!known) {
+            throw new IllegalArgumentException("不认识的配置项：" + key);
+        }
+    }
+
+    //值不对时抛IllegalArgumentException，键不认识时返回false
+    private boolean apply(String key, String value) {
+        switch (key) {
+            case "port": port = parsePort(value); break;
+            case "statsPort": statsPort = parsePort(value); break;
+            case "backlog": backlog = parsePositive(value); break;
+            case "tcpNoDelay": tcpNoDelay = parseBoolean(value); break;
+            case "sendBufferSize": sendBufferSize = parseNonNegative(value); break;
+            case "receiveBufferSize": receiveBufferSize = parseNonNegative(value); break;
+            case "reusePort": reusePort = parseBoolean(value); break;
+            case "handoffFile": handoffFile = value.isEmpty() ? null : Paths.get(value); break;
+            case "ioThreads": ioThreads = parseNonNegative(value); break;
+            case "bioThreads": bioThreads = parsePositive(value); break;
+            case "virtualThreads": virtualThreads = parseBoolean(value); break;
+            case "readBufferSize": readBufferSize = parsePositive(value); break;
+            case "poolBytesPerClass": poolBytesPerClass = parseNonNegative(value); break;
+            case "maxQueuedMessages": maxQueuedMessages = parsePositive(value); break;
+            case "slowClientPolicy": slowClientPolicy = value.toUpperCase(); break;
+            case "writeBatchSize": writeBatchSize = parsePositive(value); break;
+            case "flushDelayMillis": flushDelayMillis = Long.parseLong(value); break;
+            case "idleTimeoutSeconds": idleTimeoutSeconds = parseNonNegative(value); break;
+            case "drainTimeoutSeconds": drainTimeoutSeconds = parseNonNegative(value); break;
+            case "messagesPerSecond": messagesPerSecond = Double.parseDouble(value); break;
+            case "messageBurst": messageBurst = parseNonNegative(value); break;
+            case "bytesPerSecond": bytesPerSecond = Double.parseDouble(value); break;
+            case "byteBurst": byteBurst = parseNonNegative(value); break;
+            case "floodPolicy": floodPolicy = FloodPolicy.valueOf(value.toUpperCase()); break;
+            case "logDir": logDir = value; break;
+            case "historySize": historySize = parseNonNegative(value); break;
+            case "maxFileSize": maxFileSize = Long.parseLong(value); break;
+            case "compressionThreshold": compressionThreshold = parseNonNegative(value); break;
+            case "clusterPort": clusterPort = parsePort(value); break;
+            case "peers": peers = parsePeers(value); break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private static int parsePort(String value) {
+        int port = Integer.parseInt(value);
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException();
+        }
+        return port;
+    }
+
+    private static int parsePositive(String value) {
+        int n = Integer.parseInt(value);
+        if (n <= 0) {
+            throw new IllegalArgumentException();
+        }
+        return n;
+    }
+
+    private static int parseNonNegative(String value) {
+        int n = Integer.parseInt(value);
+        if (n < 0) {
+            throw new IllegalArgumentException();
+        }
+        return n;
+    }
+
+    //Boolean.parseBoolean把拼错的当成false，这里只认true和false
+    private static boolean parseBoolean(String value) {
+        if ("true".equalsIgnoreCase(value)) {
+            return true;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new IllegalArgumentException();
+    }
+
+    //127.0.0.1:7102,127.0.0.1:7103
+    private static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException();
+            }
+            peers.add(new InetSocketAddress(peer.substring(0, colon), parsePort(peer.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public int statsPort() {
+        return statsPort;
+    }
+
+    public int backlog() {
+        return backlog;
+    }
+
+    public boolean tcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public int sendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public int receiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public boolean reusePort() {
+        return reusePort || handoffFile != null;
+    }
+
+    public Path handoffFile() {
+        return handoffFile;
+    }
+
+    public int ioThreads() {
+        return ioThreads;
+    }
+
+    public int bioThreads() {
+        return bioThreads;
+    }
+
+    public boolean virtualThreads() {
+        return virtualThreads;
+    }
+
+    public int readBufferSize() {
+        return readBufferSize;
+    }
+
+    public int poolBytesPerClass() {
+        return poolBytesPerClass;
+    }
+
+    public int maxQueuedMessages() {
+        return maxQueuedMessages;
+    }
+
+    /**
+     * NIO.server.SlowClientPolicy的名字，common里不依赖NIO包
+     */
+    public String slowClientPolicy() {
+        return slowClientPolicy;
+    }
+
+    public int writeBatchSize() {
+        return writeBatchSize;
+    }
+
+    public long flushDelayMillis() {
+        return flushDelayMillis;
+    }
+
+    public int idleTimeoutSeconds() {
+        return idleTimeoutSeconds;
+    }
+
+    public int drainTimeoutSeconds() {
+        return drainTimeoutSeconds;
+    }
+
+    public double messagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public int messageBurst() {
+        return messageBurst;
+    }
+
+    public double bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int byteBurst() {
+        return byteBurst;
+    }
+
+    public FloodPolicy floodPolicy() {
+        return floodPolicy;
+    }
+
+    public String logDir() {
+        return logDir;
+    }
+
+    public int historySize() {
+        return historySize;
+    }
+
+    public long maxFileSize() {
+        return maxFileSize;
+    }
+
+    public int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    public int clusterPort() {
+        return clusterPort;
+    }
+
+    public List<InetSocketAddress> peers() {
+        return peers;
+    }
+}
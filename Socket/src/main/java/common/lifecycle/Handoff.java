@@ -0,0 +1,91 @@
+package common.lifecycle;
+
+import common.log.AsyncLogger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 热重启交接，三种服务器共用
+ * 新进程用SO_REUSEPORT绑定同一个端口之后takeOver：按pid文件找到老进程，发SIGTERM让它排空退出；
+ * 老进程停止accept、不再写消息日志之后release，删掉pid文件，新进程等到文件被删才开始处理连接，
+ * 两个进程不会同时追加同一个日志。等待期间新连接在新进程的backlog里排队，不会被拒绝
+ * 老进程关闭监听时还在它accept队列里的连接会被内核重置，这是SO_REUSEPORT管不到的，窗口只有几毫秒
+ */
+public class Handoff {
+    //老进程一直不确认也不退出的话，最多等这么久
+    private static final long WAIT_MILLIS = 5000;
+    private static final long POLL_MILLIS = 10;
+
+    private final Path pidFile;
+    private final long self = ProcessHandle.current().pid();
+    private boolean released;
+
+    public Handoff(Path pidFile) {
+        this.pidFile = pidFile;
+    }
+
+    /**
+     * 监听端口绑定之后、开始accept之前调用，会阻塞到老进程确认为止
+     * @return 老进程退出时完成，没有老进程时已经完成；统计端口之类不能复用的端口等它完成再绑定
+     */
+    public CompletableFuture<Void> takeOver() throws IOException {
+        CompletableFuture<Void> exited = CompletableFuture.completedFuture(null);
+        Optional<ProcessHandle> old = readPid().flatMap(ProcessHandle::of).filter(this::isOldServer);
+        if (old.isPresent()) {
+            ProcessHandle process = old.get();
+            AsyncLogger.info("接管进程" + process.pid() + "，等它停止accept...");
+            //Unix上是SIGTERM，老进程的shutdown hook开始排空
+            process.destroy();
+            long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+            try {
+                while (Files.exists(pidFile) && process.isAlive() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(POLL_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exited = process.onExit().thenApply(p -> null);
+        }
+        Files.write(pidFile, String.valueOf(self).getBytes(StandardCharsets.US_ASCII));
+        return exited;
+    }
+
+    /**
+     * 停止accept、不再写日志之后调用，通知新进程可以开始了；只删自己写的pid文件，重复调用没关系
+     */
+    public synchronized void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        try {
+            if (readPid().filter(pid -> pid == self).isPresent()) {
+                Files.delete(pidFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private Optional<Long> readPid() throws IOException {
+        try {
+            return Optional.of(Long.parseLong(new String(Files.readAllBytes(pidFile), StandardCharsets.US_ASCII).trim()));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    //pid文件可能是上次异常退出留下的，pid已经被别的进程复用了，不能误杀
+    private boolean isOldServer(ProcessHandle process) {
+        return process.pid() != self && process.isAlive()
+                && process.info().commandLine().map(line -> line.contains("ChatServer")).orElse(true);
+    }
+}
@@ -0,0 +1,13 @@
+package common.limit;
+
+/**
+ * 客户端发送超过限速时的处理
+ */
+public enum FloodPolicy {
+    //丢掉这条消息，连续超限只提示一次
+    DROP,
+    //照常处理，但暂停读这个客户端，直到欠的令牌补回来
+    DELAY,
+    //断开连接
+    DISCONNECT
+}
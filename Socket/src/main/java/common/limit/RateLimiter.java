@@ -0,0 +1,80 @@
+package common.limit;
+
+import common.metrics.ServerMetrics;
+
+/**
+ * 每个会话一个，同时限制消息数和字节数，两个都够才放行
+ * 哪个限制拦下了消息就记哪个计数；不是线程安全的
+ */
+public class RateLimiter {
+    private static final long NOTICE_INTERVAL_NANOS = 1_000_000_000L;
+
+    //限制为0的桶不创建，不检查
+    private final TokenBucket messages;
+    private final TokenBucket bytes;
+    private final ServerMetrics metrics;
+    //上次提示客户端被限速的时间
+    private long lastNoticeAt;
+    private boolean noticed;
+
+    /**
+     * @param messagesPerSecond 每秒消息数，0表示不限
+     * @param bytesPerSecond 每秒字节数，0表示不限；byteBurst要不小于最大帧长，否则大消息永远发不出去
+     */
+    public RateLimiter(double messagesPerSecond, int messageBurst, double bytesPerSecond, int byteBurst,
+                       ServerMetrics metrics) {
+        this.messages = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond, messageBurst) : null;
+        this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, byteBurst) : null;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 放行一条size字节的消息
+     * @return 0表示放行，已经扣了令牌；否则没扣令牌，返回还要等多少纳秒
+     */
+    public long acquire(int size) {
+        long now = System.nanoTime();
+        long messageWait = messages == null ? 0 : messages.waitNanos(1, now);
+        long byteWait = bytes == null ? 0 : bytes.waitNanos(size, now);
+        if (messageWait == 0 && byteWait == 0) {
+            take(size, now);
+            return 0;
+        }
+        if (messageWait > 0) {
+            metrics.rateLimitedMessages.increment();
+        }
+        if (byteWait > 0) {
+            metrics.rateLimitedBytes.increment();
+        }
+        return Math.max(messageWait, byteWait);
+    }
+
+    /**
+     * acquire被拦下之后仍然放行，欠账记在桶上
+     */
+    public void forceAcquire(int size) {
+        take(size, System.nanoTime());
+    }
+
+    /**
+     * 消息被丢掉时要不要提示客户端，持续刷屏时每秒最多提示一次，不然提示本身也成了刷屏
+     */
+    public boolean shouldNotify() {
+        long now = System.nanoTime();
+        if (noticed && now - lastNoticeAt < NOTICE_INTERVAL_NANOS) {
+            return false;
+        }
+        noticed = true;
+        lastNoticeAt = now;
+        return true;
+    }
+
+    private void take(int size, long now) {
+        if (messages != null) {
+            messages.take(1, now);
+        }
+        if (bytes != null) {
+            bytes.take(size, now);
+        }
+    }
+}
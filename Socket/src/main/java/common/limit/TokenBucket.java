@@ -0,0 +1,43 @@
+package common.limit;
+
+/**
+ * 令牌桶，按GCRA算法实现：只记一个“桶刚好重新装满的理论时间”，不用定时补令牌
+ * 检查和扣令牌都是几次整数运算；不是线程安全的，每个会话只在自己的读线程里用
+ */
+public class TokenBucket {
+    private final double nanosPerToken;
+    //桶满时能连续放行多少纳秒的量，也就是burst个令牌
+    private final long burstNanos;
+    //欠的令牌全部补回来的时间，早于now说明桶是满的
+    private long tat;
+
+    /**
+     * @param tokensPerSecond 每秒补充的令牌数
+     * @param burst 桶的容量，一次最多能放行这么多
+     */
+    public TokenBucket(double tokensPerSecond, long burst) {
+        this.nanosPerToken = 1_000_000_000d / tokensPerSecond;
+        this.burstNanos = (long) (burst * nanosPerToken);
+        this.tat = System.nanoTime();
+    }
+
+    /**
+     * 拿cost个令牌还要等多久，不扣令牌
+     * @return 0表示现在就够
+     */
+    public long waitNanos(long cost, long now) {
+        long wait = next(cost, now) - now - burstNanos;
+        return Math.max(0, wait);
+    }
+
+    /**
+     * 扣掉cost个令牌，不够的话记成欠账，后面的请求要多等
+     */
+    public void take(long cost, long now) {
+        tat = next(cost, now);
+    }
+
+    private long next(long cost, long now) {
+        return Math.max(tat, now) + (long) (cost * nanosPerToken);
+    }
+}
@@ -0,0 +1,92 @@
+package common.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 异步日志：调用线程只把一行放进有界队列，后台线程攒一批一次写到System.out
+ * selector线程和读线程不再直接做同步的控制台输出
+ * 每秒最多输出maxLinesPerSecond行，超出的和队列满时的都丢掉并计数，下一秒补一行提示
+ */
+public final class AsyncLogger {
+    private static final int QUEUE_SIZE = 8192;
+    private static final int DEFAULT_MAX_LINES_PER_SECOND = 1000;
+    private static final AsyncLogger INSTANCE = new AsyncLogger();
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final LongAdder dropped = new LongAdder();
+    private volatile int maxLinesPerSecond = DEFAULT_MAX_LINES_PER_SECOND;
+
+    private AsyncLogger() {
+        Thread thread = new Thread(this::drain, "async-logger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 不阻塞，队列满了直接丢
+     */
+    public static void info(String line) {
+        if (!INSTANCE.queue.offer(line)) {
+            INSTANCE.dropped.increment();
+        }
+    }
+
+    public static void setMaxLinesPerSecond(int maxLinesPerSecond) {
+        INSTANCE.maxLinesPerSecond = maxLinesPerSecond;
+    }
+
+    /**
+     * 启动以来丢掉的行数
+     */
+    public static long dropped() {
+        return INSTANCE.dropped.sum();
+    }
+
+    private void drain() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
+        long windowStart = System.nanoTime();
+        int written = 0;
+        long reported = 0;
+        try {
+            while (true) {
+                String first = queue.poll(1, TimeUnit.SECONDS);
+                long now = System.nanoTime();
+                if (now - windowStart >= TimeUnit.SECONDS.toNanos(1)) {
+                    long total = dropped.sum();
+                    if (total > reported) {
+                        out.append("日志过多，丢弃了").append(total - reported).append("行\n");
+                        reported = total;
+                    }
+                    windowStart = now;
+                    written = 0;
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                for (String line : batch) {
+                    if (written < maxLinesPerSecond) {
+                        out.append(line).append('\n');
+                        written++;
+                    } else {
+                        dropped.increment();
+                    }
+                }
+                batch.clear();
+                if (out.length() > 0) {
+                    System.out.print(out);
+                    System.out.flush();
+                    out.setLength(0);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
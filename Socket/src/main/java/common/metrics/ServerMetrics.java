@@ -0,0 +1,337 @@
+package common.metrics;
+
+import common.log.AsyncLogger;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * 服务器的计数器和直方图，两种服务器共用
+ * 计数器用LongAdder，直方图每个reactor一份，热路径上只有无竞争的累加
+ * 后台线程每秒算一次速率并保存直方图快照，分位数取最近10秒
+ * start之后通过JMX发布（ChatRoom:type=ServerMetrics,name=...），可选再开一个纯文本的/stats
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final int WINDOW_SECONDS = 10;
+
+    public final LongAdder connectionsOpened = new LongAdder();
+    public final LongAdder connectionsClosed = new LongAdder();
+    public final LongAdder bytesIn = new LongAdder();
+    public final LongAdder bytesOut = new LongAdder();
+    public final LongAdder messagesIn = new LongAdder();
+    public final LongAdder messagesOut = new LongAdder();
+    //write系统调用次数，和messagesOut比能看出合并写的效果
+    public final LongAdder writeCalls = new LongAdder();
+    //心跳超时被断开的连接
+    public final LongAdder idleEvictions = new LongAdder();
+    //发给集群里其他节点的转发（每条链路算一次）和收到的转发（去重之后）
+    public final LongAdder relaysOut = new LongAdder();
+    public final LongAdder relaysIn = new LongAdder();
+    //被消息数限速、字节数限速拦下的次数
+    public final LongAdder rateLimitedMessages = new LongAdder();
+    public final LongAdder rateLimitedBytes = new LongAdder();
+    //压缩之后发出去的帧数（每个接收者算一次）和因此少发的字节数
+    public final LongAdder compressedFrames = new LongAdder();
+    public final LongAdder compressionSavedBytes = new LongAdder();
+    //一次广播从开始到写进某个reactor上所有接收者队列的纳秒数
+    public final ShardedHistogram fanOutLatency = new ShardedHistogram();
+    //selector每轮处理就绪事件和任务的纳秒数，不含阻塞等待
+    public final ShardedHistogram loopTime = new ShardedHistogram();
+    //入队时发送队列的长度
+    public final ShardedHistogram queueDepth = new ShardedHistogram();
+
+    private final String name;
+    //最近WINDOW_SECONDS+1秒的快照，环形
+    private final Histogram[][] snapshots = new Histogram[WINDOW_SECONDS + 1][];
+    private int tick;
+    private volatile Histogram[] recent = {new Histogram(), new Histogram(), new Histogram()};
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+    private volatile double messagesInPerSecond;
+    private volatile double messagesOutPerSecond;
+    private ScheduledExecutorService ticker;
+    private StatsServer statsServer;
+
+    public ServerMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 注册JMX并开始每秒统计
+     * @param statsPort 纯文本统计的HTTP端口，0表示不开
+     */
+    public void start(int statsPort) {
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            mBeanServer.registerMBean(this, new ObjectName("ChatRoom:type=ServerMetrics,name=" + name));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        if (statsPort > 0) {
+            try {
+                statsServer = new StatsServer(this, statsPort);
+                AsyncLogger.info("统计信息：http://localhost:" + statsPort + "/stats");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+        if (statsServer != null) {
+            statsServer.stop();
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .unregisterMBean(new ObjectName("ChatRoom:type=ServerMetrics,name=" + name));
+        } catch (JMException e) {
+            //没注册过
+        }
+    }
+
+    /**
+     * 包一层统计读到的字节数，BIO用
+     */
+    public InputStream countBytesIn(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    bytesIn.increment();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    bytesIn.add(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * 包一层统计写出的字节数，BIO用
+     */
+    public OutputStream countBytesOut(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesOut.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                //FilterOutputStream默认一个字节一个字节地写
+                out.write(b, off, len);
+                bytesOut.add(len);
+            }
+        };
+    }
+
+    private void tick() {
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+        messagesInPerSecond = in - lastMessagesIn;
+        messagesOutPerSecond = out - lastMessagesOut;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+
+        Histogram[] now = {fanOutLatency.snapshot(), loopTime.snapshot(), queueDepth.snapshot()};
+        int slot = tick % snapshots.length;
+        //最老的快照，不满10秒时从启动算起
+        Histogram[] oldest = snapshots[(tick + 1) % snapshots.length];
+        snapshots[slot] = now;
+        tick++;
+        Histogram[] window = new Histogram[now.length];
+        for (int i = 0; i < now.length; i++) {
+            window[i] = now[i].copy();
+            if (oldest != null) {
+                window[i].subtract(oldest[i]);
+            }
+        }
+        recent = window;
+    }
+
+    /**
+     * 纯文本，每行一个指标
+     */
+    public String render() {
+        Histogram[] window = recent;
+        StringBuilder out = new StringBuilder();
+        out.append("connections.active ").append(getActiveConnections()).append('\n');
+        out.append("connections.total ").append(getTotalConnections()).append('\n');
+        out.append("connections.idle_evicted ").append(getIdleEvictions()).append('\n');
+        out.append("bytes.in ").append(getBytesIn()).append('\n');
+        out.append("bytes.out ").append(getBytesOut()).append('\n');
+        out.append("messages.in ").append(getMessagesIn()).append('\n');
+        out.append("messages.out ").append(getMessagesOut()).append('\n');
+        out.append("write.calls ").append(getWriteCalls()).append('\n');
+        out.append("cluster.relays.out ").append(getRelaysOut()).append('\n');
+        out.append("cluster.relays.in ").append(getRelaysIn()).append('\n');
+        out.append("ratelimit.messages ").append(getRateLimitedMessages()).append('\n');
+        out.append("ratelimit.bytes ").append(getRateLimitedBytes()).append('\n');
+        out.append("compression.frames ").append(getCompressedFrames()).append('\n');
+        out.append("compression.saved_bytes ").append(getCompressionSavedBytes()).append('\n');
+        out.append("messages.in.per_second ").append(getMessagesInPerSecond()).append('\n');
+        out.append("messages.out.per_second ").append(getMessagesOutPerSecond()).append('\n');
+        appendHistogram(out, "fanout.latency.us", window[0], 1000);
+        appendHistogram(out, "loop.time.us", window[1], 1000);
+        appendHistogram(out, "queue.depth", window[2], 1);
+        out.append("log.dropped ").append(getDroppedLogLines()).append('\n');
+        return out.toString();
+    }
+
+    private static void appendHistogram(StringBuilder out, String name, Histogram histogram, long divisor) {
+        out.append(name).append(" count=").append(histogram.count())
+                .append(" p50=").append(histogram.percentile(50) / divisor)
+                .append(" p99=").append(histogram.percentile(99) / divisor)
+                .append(" p999=").append(histogram.percentile(99.9) / divisor)
+                .append(" max=").append(histogram.max() / divisor).append('\n');
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getTotalConnections() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    @Override
+    public long getWriteCalls() {
+        return writeCalls.sum();
+    }
+
+    @Override
+    public long getRelaysOut() {
+        return relaysOut.sum();
+    }
+
+    @Override
+    public long getRelaysIn() {
+        return relaysIn.sum();
+    }
+
+    @Override
+    public long getRateLimitedMessages() {
+        return rateLimitedMessages.sum();
+    }
+
+    @Override
+    public long getRateLimitedBytes() {
+        return rateLimitedBytes.sum();
+    }
+
+    @Override
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    @Override
+    public long getCompressionSavedBytes() {
+        return compressionSavedBytes.sum();
+    }
+
+    @Override
+    public double getMessagesInPerSecond() {
+        return messagesInPerSecond;
+    }
+
+    @Override
+    public double getMessagesOutPerSecond() {
+        return messagesOutPerSecond;
+    }
+
+    @Override
+    public long getFanOutLatencyP50() {
+        return recent[0].percentile(50) / 1000;
+    }
+
+    @Override
+    public long getFanOutLatencyP99() {
+        return recent[0].percentile(99) / 1000;
+    }
+
+    @Override
+    public long getFanOutLatencyP999() {
+        return recent[0].percentile(99.9) / 1000;
+    }
+
+    @Override
+    public long getLoopTimeP99() {
+        return recent[1].percentile(99) / 1000;
+    }
+
+    @Override
+    public long getLoopTimeMax() {
+        return recent[1].max() / 1000;
+    }
+
+    @Override
+    public long getQueueDepthP99() {
+        return recent[2].percentile(99);
+    }
+
+    @Override
+    public long getQueueDepthMax() {
+        return recent[2].max();
+    }
+
+    @Override
+    public long getDroppedLogLines() {
+        return AsyncLogger.dropped();
+    }
+}
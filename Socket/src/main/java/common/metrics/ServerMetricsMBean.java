@@ -0,0 +1,54 @@
+package common.metrics;
+
+/**
+ * JMX属性，延迟单位是微秒，分位数都是最近10秒的
+ */
+public interface ServerMetricsMBean {
+    long getActiveConnections();
+
+    long getTotalConnections();
+
+    long getIdleEvictions();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getWriteCalls();
+
+    long getRelaysOut();
+
+    long getRelaysIn();
+
+    long getRateLimitedMessages();
+
+    long getRateLimitedBytes();
+
+    long getCompressedFrames();
+
+    long getCompressionSavedBytes();
+
+    double getMessagesInPerSecond();
+
+    double getMessagesOutPerSecond();
+
+    long getFanOutLatencyP50();
+
+    long getFanOutLatencyP99();
+
+    long getFanOutLatencyP999();
+
+    long getLoopTimeP99();
+
+    long getLoopTimeMax();
+
+    long getQueueDepthP99();
+
+    long getQueueDepthMax();
+
+    long getDroppedLogLines();
+}
@@ -0,0 +1,29 @@
+package common.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 每个写入线程一份Histogram，读取时合并
+ * 各个reactor只写自己的那份，记录时不会争抢同一个缓存行
+ */
+public class ShardedHistogram {
+    private final List<Histogram> shards = new CopyOnWriteArrayList<>();
+
+    /**
+     * 给一个写入线程用，线程启动时取一次
+     */
+    public Histogram newShard() {
+        Histogram shard = new Histogram();
+        shards.add(shard);
+        return shard;
+    }
+
+    public Histogram snapshot() {
+        Histogram merged = new Histogram();
+        for (Histogram shard : shards) {
+            merged.add(shard);
+        }
+        return merged;
+    }
+}
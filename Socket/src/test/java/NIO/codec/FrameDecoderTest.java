@@ -0,0 +1,180 @@
+package NIO.codec;
+
+import NIO.buffer.BufferPool;
+import NIO.buffer.PooledBuffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FrameDecoderTest {
+    private final BufferPool pool = new BufferPool();
+    private final FrameEncoder encoder = new FrameEncoder(StandardCharsets.UTF_8, pool);
+    private final List<FrameDecoder> decoders = new ArrayList<>();
+
+    @AfterEach
+    void release() {
+        for (FrameDecoder decoder : decoders) {
+            decoder.release();
+        }
+    }
+
+    @Test
+    void decodesFramesSplitAtEveryByte() throws IOException {
+        FrameDecoder decoder = decoder(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        byte[] bytes = concat(frame("你好"), frame("hello"));
+        List<String> messages = new ArrayList<>();
+        //一次只喂一个字节，长度头和多字节字符都会被切开
+        for (byte b : bytes) {
+            messages.addAll(decode(decoder, new byte[]{b}));
+        }
+        assertEquals(List.of("你好", "hello"), messages);
+        assertFalse(decoder.hasBuffered());
+    }
+
+    @Test
+    void keepsHalfFrameUntilTheRestArrives() throws IOException {
+        FrameDecoder decoder = decoder(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        byte[] second = frame("second");
+        byte[] bytes = concat(frame("first"), second);
+        int cut = bytes.length - second.length + 3;
+
+        assertEquals(List.of("first"), decode(decoder, slice(bytes, 0, cut)));
+        assertTrue(decoder.hasBuffered());
+        assertEquals(List.of("second"), decode(decoder, slice(bytes, cut, bytes.length)));
+        assertFalse(decoder.hasBuffered());
+    }
+
+    @Test
+    void rejectsOversizeFrameFromTheHeaderAlone() {
+        FrameDecoder decoder = decoder(16);
+        //只有长度头，内容还没到就该拒绝，不能等着攒一个超长的帧
+        ByteBuffer header = ByteBuffer.allocate(FrameEncoder.HEADER_LENGTH).putInt(17).flip();
+        assertThrows(IOException.class, () -> decoder.decode(header, new ArrayList<>()));
+    }
+
+    @Test
+    void acceptsFrameAtTheLimit() throws IOException {
+        FrameDecoder decoder = decoder(16);
+        assertEquals(List.of("0123456789abcdef"), decode(decoder, frame("0123456789abcdef")));
+    }
+
+    @Test
+    void rejectsHeaderWithBothFlags() {
+        FrameDecoder decoder = decoder(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        ByteBuffer frame = ByteBuffer.allocate(FrameEncoder.HEADER_LENGTH + 1).putInt(FrameEncoder.FLAGS | 1).put((byte) 0).flip();
+        assertThrows(IOException.class, () -> decoder.decode(frame, new ArrayList<>()));
+    }
+
+    @Test
+    void inflatesCompressedFrame() throws IOException {
+        FrameDecoder decoder = decoder(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        String text = "a".repeat(4000);
+        assertEquals(List.of(text, text), decode(decoder, compressed(concat(frame(text), frame(text)))));
+    }
+
+    @Test
+    void rejectsOversizeFrameInsideCompressedFrame() {
+        FrameDecoder decoder = decoder(1024);
+        //压缩之后很小，解开之后里面的帧超过了上限；编码的一端上限放大才造得出来
+        byte[] inner = bytes(new FrameEncoder(StandardCharsets.UTF_8, pool, 4096).encode("a".repeat(2000)));
+        ByteBuffer in = ByteBuffer.wrap(compressed(inner));
+        assertThrows(IOException.class, () -> decoder.decode(in, new ArrayList<>()));
+    }
+
+    @Test
+    void skipsFileContentAndDecodesTheNextFrame() throws IOException {
+        FrameDecoder decoder = decoder(FrameDecoder.DEFAULT_MAX_FRAME_LENGTH);
+        PooledBuffer header = encoder.encodeFileHeader("a.txt", 10);
+        byte[] bytes = concat(bytes(header), new byte[10], frame("after"));
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+
+        List<ByteBuffer> frames = new ArrayList<>();
+        decoder.decode(in, frames);
+        assertTrue(frames.isEmpty());
+        FileHeader fileHeader = decoder.takeFileHeader();
+        assertNotNull(fileHeader);
+        assertEquals("a.txt", fileHeader.name());
+        assertEquals(10, decoder.rawRemaining());
+
+        decoder.skipRaw(in);
+        assertFalse(decoder.inRaw());
+        assertEquals(List.of("after"), decode(decoder, in));
+    }
+
+    private FrameDecoder decoder(int maxFrameLength) {
+        FrameDecoder decoder = new FrameDecoder(pool, maxFrameLength);
+        decoders.add(decoder);
+        return decoder;
+    }
+
+    //拆出来的帧是缓冲的视图，下次decode之前转成字符串
+    private static List<String> decode(FrameDecoder decoder, byte[] bytes) throws IOException {
+        return decode(decoder, ByteBuffer.wrap(bytes));
+    }
+
+    private static List<String> decode(FrameDecoder decoder, ByteBuffer in) throws IOException {
+        List<ByteBuffer> frames = new ArrayList<>();
+        decoder.decode(in, frames);
+        List<String> messages = new ArrayList<>();
+        for (ByteBuffer frame : frames) {
+            messages.add(StandardCharsets.UTF_8.decode(frame).toString());
+        }
+        decoder.discardReadBytes();
+        return messages;
+    }
+
+    private byte[] frame(String text) {
+        return bytes(encoder.encode(text));
+    }
+
+    private byte[] compressed(byte[] frames) {
+        FrameCompressor compressor = new FrameCompressor(pool);
+        try {
+            PooledBuffer compressed = compressor.compress(ByteBuffer.wrap(frames));
+            assertNotNull(compressed);
+            return bytes(compressed);
+        } finally {
+            compressor.end();
+        }
+    }
+
+    private static byte[] bytes(PooledBuffer buffer) {
+        try {
+            ByteBuffer b = buffer.buffer();
+            byte[] bytes = new byte[b.remaining()];
+            b.get(bytes);
+            return bytes;
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static byte[] slice(byte[] bytes, int from, int to) {
+        byte[] slice = new byte[to - from];
+        System.arraycopy(bytes, from, slice, 0, slice.length);
+        return slice;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer all = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            all.put(part);
+        }
+        return all.array();
+    }
+}
@@ -0,0 +1,72 @@
+package NIO.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TimerWheelTest {
+    private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    void firesAfterTheDelayNotBefore() {
+        TimerWheel timers = new TimerWheel(10, TimeUnit.MILLISECONDS, 8);
+        AtomicInteger fired = new AtomicInteger();
+        long start = System.nanoTime();
+        timers.schedule(fired::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+
+        timers.advance(start + TimeUnit.MILLISECONDS.toNanos(95));
+        assertEquals(0, fired.get());
+        //精度是一个tick，最多晚一个tick
+        timers.advance(start + TimeUnit.MILLISECONDS.toNanos(100) + 2 * TICK);
+        assertEquals(1, fired.get());
+        assertEquals(0, timers.size());
+    }
+
+    @Test
+    void delayLongerThanOneRoundWaitsForItsRound() {
+        //8个槽一圈80毫秒，250毫秒要转三圈多
+        TimerWheel timers = new TimerWheel(10, TimeUnit.MILLISECONDS, 8);
+        AtomicInteger fired = new AtomicInteger();
+        long start = System.nanoTime();
+        timers.schedule(fired::incrementAndGet, 250, TimeUnit.MILLISECONDS);
+
+        for (long ms = 10; ms < 250; ms += 10) {
+            timers.advance(start + TimeUnit.MILLISECONDS.toNanos(ms) - 1);
+        }
+        assertEquals(0, fired.get());
+        timers.advance(start + TimeUnit.MILLISECONDS.toNanos(250) + 2 * TICK);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    void schedulingAfterIdleDoesNotFireEarly() throws InterruptedException {
+        TimerWheel timers = new TimerWheel(10, TimeUnit.MILLISECONDS, 8);
+        //轮空着放了好几圈，reactor这期间不会调用advance
+        Thread.sleep(200);
+        AtomicInteger fired = new AtomicInteger();
+        long start = System.nanoTime();
+        timers.schedule(fired::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+
+        timers.advance(start);
+        timers.advance(start + TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, fired.get());
+        timers.advance(start + TimeUnit.MILLISECONDS.toNanos(100) + 2 * TICK);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    void cancelledTimeoutDoesNotRun() {
+        TimerWheel timers = new TimerWheel(10, TimeUnit.MILLISECONDS, 8);
+        AtomicInteger fired = new AtomicInteger();
+        long start = System.nanoTime();
+        TimerWheel.Timeout timeout = timers.schedule(fired::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        timeout.cancel();
+
+        assertEquals(0, timers.size());
+        assertEquals(0, timers.advance(start + TimeUnit.MILLISECONDS.toNanos(100)));
+        assertEquals(0, fired.get());
+    }
+}
@@ -0,0 +1,66 @@
+package common.limit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenBucketTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void fullBucketLetsTheBurstThrough() {
+        //每秒10个，一个令牌100毫秒，桶里5个
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        assertEquals(0, bucket.waitNanos(5, now));
+        bucket.take(5, now);
+        assertEquals(100 * MS, bucket.waitNanos(1, now));
+    }
+
+    @Test
+    void waitShrinksAsTokensRefill() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        bucket.take(5, now);
+        assertEquals(60 * MS, bucket.waitNanos(1, now + 40 * MS));
+        assertEquals(0, bucket.waitNanos(1, now + 100 * MS));
+        assertEquals(0, bucket.waitNanos(5, now + 500 * MS));
+    }
+
+    @Test
+    void costLargerThanBurstWaitsForTheDifference() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        assertEquals(200 * MS, bucket.waitNanos(7, now));
+    }
+
+    @Test
+    void idleTimeDoesNotGrowTheBucketBeyondBurst() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long later = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        assertEquals(0, bucket.waitNanos(5, later));
+        assertEquals(100 * MS, bucket.waitNanos(6, later));
+    }
+
+    @Test
+    void waitNanosDoesNotTakeTokens() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        bucket.waitNanos(5, now);
+        bucket.waitNanos(5, now);
+        assertEquals(0, bucket.waitNanos(5, now));
+    }
+
+    @Test
+    void takingPastEmptyIsDebtLaterRequestsPayFor() {
+        TokenBucket bucket = new TokenBucket(10, 5);
+        long now = System.nanoTime();
+        //DELAY策略先强行扣掉再睡，欠的要补回来
+        bucket.take(5, now);
+        bucket.take(3, now);
+        assertEquals(400 * MS, bucket.waitNanos(1, now));
+        assertEquals(100 * MS, bucket.waitNanos(1, now + 300 * MS));
+    }
+}